@@ -16,7 +16,6 @@
 package com.del.qrt;
 
 import android.content.Context;
-import androidx.annotation.UiThread;
 import com.del.qrt.camera.GraphicOverlay;
 import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.Tracker;
@@ -33,14 +32,24 @@ public class BarcodeGraphicTracker extends Tracker<Barcode> {
     private BarcodeGraphic mGraphic;
 
     private BarcodeUpdateListener mBarcodeUpdateListener;
+    // payload last passed to the listener
+    private String mDelivered;
 
     /**
      * Consume the item instance detected from an Activity or Fragment level by implementing the
      * BarcodeUpdateListener interface method onBarcodeDetected.
      */
     public interface BarcodeUpdateListener {
-        @UiThread
+        /**
+         * Called from one thread at a time, serialized by the processor of the detections.
+         */
         void onBarcodeDetected(Barcode barcode);
+
+        /**
+         * Called after the trackers got the detections of a frame, see
+         * {@link FrameBatchProcessor}.
+         */
+        void onFrameDone();
     }
 
     BarcodeGraphicTracker(GraphicOverlay<BarcodeGraphic> mOverlay, BarcodeGraphic mGraphic,
@@ -60,16 +69,29 @@ public class BarcodeGraphicTracker extends Tracker<Barcode> {
     @Override
     public void onNewItem(int id, Barcode item) {
         mGraphic.setId(id);
-        mBarcodeUpdateListener.onBarcodeDetected(item);
+        deliver(item);
     }
 
     /**
-     * Update the position/characteristics of the item within the overlay.
+     * Update the position/characteristics of the item within the overlay.  A sender that swaps
+     * the code at the same place keeps the tracking id, so a changed payload is passed on here.
      */
     @Override
     public void onUpdate(Detector.Detections<Barcode> detectionResults, Barcode item) {
         mOverlay.add(mGraphic);
         mGraphic.updateItem(item);
+        deliver(item);
+    }
+
+    /**
+     * Passes the item on unless its payload is the one delivered last, the same code seen in
+     * the next frame.
+     */
+    private void deliver(Barcode item) {
+        String value = item.rawValue;
+        if (value == null || value.equals(mDelivered)) return;
+        mDelivered = value;
+        mBarcodeUpdateListener.onBarcodeDetected(item);
     }
 
     /**
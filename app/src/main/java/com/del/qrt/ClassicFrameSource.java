@@ -0,0 +1,71 @@
+package com.del.qrt;
+
+import com.del.qr.Message;
+import com.del.qr.MessageEncoder;
+import com.del.qr.Part;
+import com.del.qr.utils.FileUtils;
+import com.del.qr.utils.StringUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Frames of the classic protocol ({@link MessageEncoder#code(Message)}), built on demand from the
+ * body, which stays where it is, e.g. in a file mapped into memory.
+ */
+public class ClassicFrameSource implements FrameSource {
+
+    private static final int MIN_PART_SIZE = 300;
+    private static final int MAX_PART_SIZE = 1500;
+    private static final int PREFERRED_PART_COUNT = 100;
+    private static final int MAX_PART_COUNT = 1500;
+
+    private final ByteBuffer body;
+    private final String meta;
+    private final int partSize;
+    private final int parts;
+    private final int length;
+
+    /**
+     * Sizes the parts exactly as {@link MessageEncoder#code(Message)} does for the body and
+     * prepares the meta part.
+     *
+     * @param metaInfo meta info of the message, tells whether the body is zipped
+     */
+    public ClassicFrameSource(String name, byte metaInfo, ByteBuffer body) throws Exception {
+        length = body.remaining();
+        int size = MIN_PART_SIZE;
+        int count = length / size;
+        while (count > PREFERRED_PART_COUNT && size < MAX_PART_SIZE) {
+            size += 50;
+            count = length / size;
+        }
+        if (count > MAX_PART_COUNT) {
+            throw new Exception(String.format("Слишком большой размер файла: %s",
+                    FileUtils.byteCountToDisplaySize(length)));
+        }
+        this.body = body.slice();
+        partSize = size;
+        parts = (length + partSize - 1) / partSize;
+        Message message = new Message(name, null);
+        message.setMetaInfo(metaInfo);
+        meta = MessageEncoder.codeMetaPart(message, (short) parts).code();
+    }
+
+    @Override
+    public int size() {
+        return parts + 1;
+    }
+
+    @Override
+    public String frame(long position) throws IOException {
+        int index = (int) (position % (parts + 1));
+        if (index == 0) return meta;
+        int offset = (index - 1) * partSize;
+        byte[] bytes = new byte[Math.min(partSize, length - offset)];
+        ByteBuffer part = body.duplicate();
+        part.position(offset);
+        part.get(bytes);
+        return new Part((short) index, (short) parts, StringUtil.bytesToString(bytes)).code();
+    }
+}
@@ -0,0 +1,108 @@
+package com.del.qrt;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Environment;
+import android.provider.MediaStore;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes received files to the public Downloads folder block by block, so the body never has to
+ * be on the heap at once: through MediaStore since Android 10, straight to the file before.
+ */
+public final class Downloads {
+
+    private static final String TAG = "QR-transfer-downloads";
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private Downloads() {
+    }
+
+    /**
+     * Copies the stream to a file of the given name and closes it.
+     *
+     * @return where the file was saved, for the user
+     */
+    public static String save(Context ctx, String name, InputStream body) throws IOException {
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) return saveToMediaStore(ctx, name, body);
+            return saveToFile(name, body);
+        } finally {
+            Utils.safeClose(body);
+        }
+    }
+
+    @RequiresApi(api = Build.VERSION_CODES.Q)
+    private static String saveToMediaStore(Context ctx, String name, InputStream body) throws IOException {
+        ContentResolver resolver = ctx.getContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(MediaStore.Downloads.DISPLAY_NAME, name);
+        values.put(MediaStore.Downloads.IS_PENDING, 1);
+        Uri uri = resolver.insert(MediaStore.Downloads.EXTERNAL_CONTENT_URI, values);
+        if (uri == null) throw new IOException(String.format("Не удалось создать файл '%s'", name));
+        try (OutputStream out = resolver.openOutputStream(uri)) {
+            if (out == null) throw new IOException(String.format("Не удалось создать файл '%s'", name));
+            byte[] block = new byte[BLOCK_SIZE];
+            int n;
+            while ((n = body.read(block)) != -1) {
+                out.write(block, 0, n);
+            }
+        } catch (IOException | RuntimeException e) {
+            resolver.delete(uri, null, null);
+            throw e;
+        }
+        values.clear();
+        values.put(MediaStore.Downloads.IS_PENDING, 0);
+        resolver.update(uri, values, null, null);
+        return Environment.DIRECTORY_DOWNLOADS + File.separator + displayName(resolver, uri, name);
+    }
+
+    /**
+     * Name given by MediaStore, which renames a file when the name is taken.
+     */
+    private static String displayName(ContentResolver resolver, Uri uri, String name) {
+        try (Cursor cursor = resolver.query(uri, new String[]{MediaStore.Downloads.DISPLAY_NAME}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) return cursor.getString(0);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to read the name of " + uri, e);
+        }
+        return name;
+    }
+
+    private static String saveToFile(String name, InputStream body) throws IOException {
+        File directory = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+        File file = new File(directory, name);
+        Log.i(TAG, String.format("Try to create file: %s", file.getAbsolutePath()));
+        if (!file.exists() && !file.createNewFile()) {
+            throw new IOException(String.format("Не удалось сохранить файл '%s'", file.getAbsolutePath()));
+        }
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            FileChannel channel = out.getChannel();
+            byte[] block = new byte[BLOCK_SIZE];
+            ByteBuffer buffer = ByteBuffer.wrap(block);
+            int n;
+            while ((n = body.read(block)) != -1) {
+                buffer.clear().limit(n);
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return file.getAbsolutePath();
+    }
+}
@@ -0,0 +1,30 @@
+package com.del.qrt;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.barcode.Barcode;
+
+/**
+ * Passes the detections of every frame on to the trackers and then tells the listener the frame
+ * is done, so the barcodes reported by the trackers can be handled as one batch per frame.
+ */
+class FrameBatchProcessor implements Detector.Processor<Barcode> {
+
+    private final Detector.Processor<Barcode> trackers;
+    private final BarcodeGraphicTracker.BarcodeUpdateListener listener;
+
+    FrameBatchProcessor(Detector.Processor<Barcode> trackers, BarcodeGraphicTracker.BarcodeUpdateListener listener) {
+        this.trackers = trackers;
+        this.listener = listener;
+    }
+
+    @Override
+    public void receiveDetections(Detector.Detections<Barcode> detections) {
+        trackers.receiveDetections(detections);
+        listener.onFrameDone();
+    }
+
+    @Override
+    public void release() {
+        trackers.release();
+    }
+}
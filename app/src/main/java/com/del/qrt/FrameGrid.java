@@ -0,0 +1,95 @@
+package com.del.qrt;
+
+import com.del.qrt.transfer.PayloadCodec;
+import com.del.qrt.transfer.QrFormat;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+/**
+ * Layout of the codes shown at once by {@link SendActivity}, with the code format that goes with
+ * it.  The receiver decodes every code in the camera picture, so several smaller codes can carry
+ * more than one big code when the screen and the camera picture are wide.
+ */
+public final class FrameGrid {
+
+    // Layouts tried, as codes along the longer and the shorter side of the screen
+    private static final int[][] LAYOUTS = {{1, 1}, {2, 1}, {2, 2}, {3, 3}};
+
+    // Smallest number of screen pixels per module
+    private static final int MIN_SCREEN_PIXELS = 2;
+
+    private final int columns;
+    private final int rows;
+    private final int cell;
+    private final QrFormat format;
+
+    private FrameGrid(int columns, int rows, int cell, QrFormat format) {
+        this.columns = columns;
+        this.rows = rows;
+        this.cell = cell;
+        this.format = format;
+    }
+
+    /**
+     * Single code of the given format, as big as the reference size allows with a whole number of
+     * pixels per module.
+     */
+    public static FrameGrid single(QrFormat format, int size) {
+        int modules = format.getModules();
+        return new FrameGrid(1, 1, (size + modules - 1) / modules * modules, format);
+    }
+
+    /**
+     * Picks the layout carrying the most bytes per picture: every code must get enough camera
+     * pixels per module for its format and enough screen pixels per module to be drawn.
+     *
+     * @param screenWidth  width of the area the codes are shown in
+     * @param screenHeight height of that area
+     */
+    public static FrameGrid choose(int screenWidth, int screenHeight, int previewWidth, int previewHeight,
+                                   float pixelsPerModule, ErrorCorrectionLevel level, PayloadCodec codec) {
+        boolean landscape = screenWidth >= screenHeight;
+        FrameGrid best = null;
+        int bestBytes = 0;
+        for (int[] layout : LAYOUTS) {
+            int along = layout[0];
+            int across = layout[1];
+            QrFormat format = QrFormat.forCamera(previewWidth, previewHeight, along, across, pixelsPerModule, level);
+            int columns = landscape ? along : across;
+            int rows = landscape ? across : along;
+            int modules = format.getModules();
+            int cell = Math.min(screenWidth / columns, screenHeight / rows) / modules * modules;
+            if (cell < modules * MIN_SCREEN_PIXELS) continue;
+            // the view scales the picture up, keep the bitmaps of the ring small
+            cell = Math.min(cell, (Utils.QR_SIZE + modules - 1) / modules * modules);
+            int bytes = columns * rows * format.frameBytes(codec);
+            if (best == null || bytes > bestBytes) {
+                best = new FrameGrid(columns, rows, cell, format);
+                bestBytes = bytes;
+            }
+        }
+        if (best == null) {
+            QrFormat format = QrFormat.forCamera(previewWidth, previewHeight, pixelsPerModule, level);
+            best = single(format, Utils.QR_SIZE);
+        }
+        return best;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * Side of a cell in pixels.
+     */
+    public int getCell() {
+        return cell;
+    }
+
+    public QrFormat getFormat() {
+        return format;
+    }
+}
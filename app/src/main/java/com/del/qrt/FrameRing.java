@@ -0,0 +1,189 @@
+package com.del.qrt;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Renders the frames of a {@link FrameStore} into a small ring of reusable bitmaps, always in
+ * background: the shown frame and the ones following it are rendered on the executor, so memory
+ * stays the same whatever the size of the file and the UI thread never encodes a code.
+ * <p/>
+ * The ring is direct mapped: position {@code p} always goes to slot {@code p % DEPTH}.  The slot
+ * of the bitmap last handed out is not touched by the prefetch of the positions after the shown
+ * one.
+ */
+public class FrameRing {
+
+    private static final String TAG = "QR-transfer-ring";
+
+    static final int DEPTH = 4;
+
+    private final FrameStore store;
+    private final Executor executor;
+    private final int columns;
+    private final int rows;
+    private final int cell;
+    private final int channels;
+    private final Bitmap[] bitmaps = new Bitmap[DEPTH];
+    private final QrRenderer[] renderers = new QrRenderer[DEPTH];
+    private final ReentrantLock[] locks = new ReentrantLock[DEPTH];
+
+    // Guarded by the lock of the slot
+    private final long[] rendered = new long[DEPTH];
+
+    // Guarded by this
+    private final long[] pending = new long[DEPTH];
+
+    private volatile long shown = -1;
+    private volatile long displayed = -1;
+    private volatile Exception failure;
+    private volatile boolean released;
+
+    public FrameRing(FrameStore store, Executor executor, int size) {
+        this(store, executor, size, 1, 1);
+    }
+
+    /**
+     * Ring showing a grid of codes: position {@code p} holds the frames
+     * {@code p * columns * rows} and on, each in a square cell of the given size.
+     */
+    public FrameRing(FrameStore store, Executor executor, int cell, int columns, int rows) {
+        this(store, executor, cell, columns, rows, 1);
+    }
+
+    /**
+     * Ring showing a grid of colour multiplexed codes: every cell holds {@code channels}
+     * consecutive frames, one per colour channel (see {@link QrRenderer}).
+     */
+    public FrameRing(FrameStore store, Executor executor, int cell, int columns, int rows, int channels) {
+        this.store = store;
+        this.executor = executor;
+        this.columns = columns;
+        this.rows = rows;
+        this.cell = cell;
+        this.channels = channels;
+        for (int i = 0; i < DEPTH; i++) {
+            bitmaps[i] = Bitmap.createBitmap(cell * columns, cell * rows, Bitmap.Config.ARGB_8888);
+            renderers[i] = new QrRenderer(cell);
+            locks[i] = new ReentrantLock();
+        }
+        Arrays.fill(rendered, -1);
+        Arrays.fill(pending, -1);
+    }
+
+    /**
+     * Number of positions in one loop of the source.
+     */
+    public int size() {
+        int frames = columns * rows * channels;
+        return (store.getSource().size() + frames - 1) / frames;
+    }
+
+    /**
+     * Positions whose frames are all available, see {@link FrameSource#available()}.
+     */
+    public long available() {
+        long available = store.getSource().available();
+        return available == Long.MAX_VALUE ? available : available / (columns * rows * channels);
+    }
+
+    /**
+     * Returns the bitmap of the given position if it is rendered, and schedules the next frames.
+     * Otherwise the position is rendered in background and null is returned: the caller keeps
+     * the bitmap it has and asks again later.  Never waits for a rendering, so it is meant for
+     * the UI thread.  The bitmap stays valid until another one is returned.
+     *
+     * @throws Exception if rendering the position failed, it is tried again on the next call
+     */
+    public Bitmap acquire(long position) throws Exception {
+        shown = position;
+        Exception failed = failure;
+        if (failed != null) {
+            failure = null;
+            throw failed;
+        }
+        int slot = slot(position);
+        Bitmap bitmap = null;
+        // a slot being rendered is not ready, whatever it held before
+        if (locks[slot].tryLock()) {
+            try {
+                if (rendered[slot] == position) {
+                    displayed = position;
+                    bitmap = bitmaps[slot];
+                }
+            } finally {
+                locks[slot].unlock();
+            }
+        }
+        if (bitmap == null) prefetch(position);
+        long available = available();
+        for (long next = position + 1; next < position + DEPTH && next < available; next++) {
+            prefetch(next);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stops the background rendering, the ring must not be used afterwards.
+     */
+    public void release() {
+        released = true;
+        store.release();
+    }
+
+    private void prefetch(final long position) {
+        final int slot = slot(position);
+        synchronized (this) {
+            if (pending[slot] == position) return;
+            pending[slot] = position;
+        }
+        executor.execute(() -> {
+            locks[slot].lock();
+            try {
+                long current = shown;
+                if (released || rendered[slot] == position) return;
+                if (position < current || position >= current + DEPTH
+                        || position != current && slot(displayed) == slot) {
+                    // the cursor moved away, or the slot still holds the bitmap on screen: let
+                    // the position be scheduled again later
+                    unschedule(slot, position);
+                    return;
+                }
+                try {
+                    render(slot, position);
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to render frame " + position, e);
+                    unschedule(slot, position);
+                    if (position == shown) failure = e;
+                }
+            } finally {
+                locks[slot].unlock();
+            }
+        });
+    }
+
+    private synchronized void unschedule(int slot, long position) {
+        if (pending[slot] == position) pending[slot] = -1;
+    }
+
+    private void render(int slot, long position) throws Exception {
+        rendered[slot] = -1;
+        int cells = columns * rows;
+        for (int i = 0; i < cells; i++) {
+            store.draw((position * cells + i) * channels, channels, renderers[slot], bitmaps[slot],
+                    i % columns * cell, i / columns * cell);
+        }
+        rendered[slot] = position;
+        synchronized (this) {
+            if (pending[slot] != position) pending[slot] = -1;
+        }
+    }
+
+    private static int slot(long position) {
+        return (int) (position % DEPTH);
+    }
+}
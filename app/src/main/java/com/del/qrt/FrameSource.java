@@ -0,0 +1,177 @@
+package com.del.qrt;
+
+import com.del.qrt.transfer.FountainEncoder;
+import com.del.qrt.transfer.PartEncoder;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Text of the QR frames shown by {@link SendActivity}.  Positions grow across the loops of the
+ * slideshow, so a source may return new content on every loop.
+ */
+public interface FrameSource {
+
+    /**
+     * Number of frames in one loop.
+     */
+    int size();
+
+    /**
+     * Positions below this one can be rendered without waiting for the file to be read.
+     */
+    default long available() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Whether every loop repeats the frames of the first one.
+     */
+    default boolean isCyclic() {
+        return true;
+    }
+
+    /**
+     * Character set the QR encoder must use for the text of the frames.
+     */
+    default String getCharset() {
+        return "UTF-8";
+    }
+
+    /**
+     * Error correction level of the codes, the frames are sized for it.
+     */
+    default ErrorCorrectionLevel getErrorCorrection() {
+        return ErrorCorrectionLevel.L;
+    }
+
+    String frame(long position) throws Exception;
+
+    static FrameSource of(List<String> frames) {
+        return new FrameSource() {
+            @Override
+            public int size() {
+                return frames.size();
+            }
+
+            @Override
+            public String frame(long position) {
+                return frames.get((int) (position % frames.size()));
+            }
+        };
+    }
+
+    /**
+     * Share {@code shard} of {@code shards} of the frames of the source, so several senders
+     * showing the same file each show a part of it.  The first {@code header} frames are shown by
+     * every share, the others are dealt out in turn.  The transfer id comes from the content and the
+     * frames tell their index, so the receiver merges the shares by itself.
+     */
+    static FrameSource shard(FrameSource source, int header, int shard, int shards) {
+        if (shards <= 1) return source;
+        return new FrameSource() {
+            @Override
+            public int size() {
+                return Math.max(1, header + (source.size() - header - shard + shards - 1) / shards);
+            }
+
+            @Override
+            public long available() {
+                long available = source.available();
+                if (available == Long.MAX_VALUE || available <= header) return available;
+                return header + Math.max(0, (available - header - shard + shards - 1) / shards);
+            }
+
+            @Override
+            public boolean isCyclic() {
+                return source.isCyclic();
+            }
+
+            @Override
+            public String getCharset() {
+                return source.getCharset();
+            }
+
+            @Override
+            public ErrorCorrectionLevel getErrorCorrection() {
+                return source.getErrorCorrection();
+            }
+
+            @Override
+            public String frame(long position) throws Exception {
+                long index = source.isCyclic() ? position % size() : position;
+                return source.frame(index < header ? index : header + (index - header) * shards + shard);
+            }
+        };
+    }
+
+    /**
+     * Source symbols on the first loop, fresh repair symbols on every following one.
+     */
+    static FrameSource of(FountainEncoder encoder) {
+        return new FrameSource() {
+            @Override
+            public int size() {
+                return encoder.getSymbolCount();
+            }
+
+            @Override
+            public long available() {
+                return encoder.available();
+            }
+
+            @Override
+            public boolean isCyclic() {
+                return false;
+            }
+
+            @Override
+            public String getCharset() {
+                return encoder.getCodec().getCharset();
+            }
+
+            @Override
+            public ErrorCorrectionLevel getErrorCorrection() {
+                return encoder.getFormat().getLevel();
+            }
+
+            @Override
+            public String frame(long position) throws IOException {
+                return encoder.getCodec().encode(encoder.symbol((int) position));
+            }
+        };
+    }
+
+    /**
+     * Meta frame and parts, repeated on every loop.
+     */
+    static FrameSource of(PartEncoder encoder) {
+        return new FrameSource() {
+            @Override
+            public int size() {
+                return encoder.getFrameCount();
+            }
+
+            @Override
+            public long available() {
+                return encoder.available();
+            }
+
+            @Override
+            public String getCharset() {
+                return encoder.getCodec().getCharset();
+            }
+
+            @Override
+            public ErrorCorrectionLevel getErrorCorrection() {
+                return encoder.getFormat().getLevel();
+            }
+
+            @Override
+            public String frame(long position) throws IOException {
+                return encoder.getCodec().encode(encoder.frame((int) (position % encoder.getFrameCount())));
+            }
+        };
+    }
+}
@@ -0,0 +1,209 @@
+package com.del.qrt;
+
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.zxing.qrcode.encoder.ByteMatrix;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Encoded QR codes of the first loop of a {@link FrameSource}, kept packed one bit per module (see
+ * {@link QrRenderer}) and expanded to pixels only when shown: a few kilobytes per frame instead of
+ * a bitmap, so the whole loop of a large file can be seeked freely.  The packed codes are written
+ * to a temporary file mapped into memory segment by segment, not to the heap.
+ * <p/>
+ * The codes are encoded on a pool of workers, they complete in any order but are published in
+ * order: everything below {@link #getPrepared()} is ready.  Frames not prepared yet, like the
+ * frames after the first loop of a source that is not cyclic, are encoded on demand by
+ * {@link #draw}, which is why it must not be called on the UI thread.
+ */
+public class FrameStore {
+
+    private static final String TAG = "QR-transfer-store";
+
+    public interface ProgressListener {
+        /**
+         * Called from a worker thread every time the prepared prefix grows.
+         */
+        void onProgress(int prepared, int total, float partsPerSecond);
+    }
+
+    private static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final FrameSource source;
+    private final int count;
+    // where the packed code of every prepared frame is in the file
+    private final long[] offsets;
+    private final short[] sides;
+    private final FileChannel channel;
+
+    // Guarded by this
+    private final BitSet done = new BitSet();
+    private final List<ByteBuffer> segments = new ArrayList<>();
+    private long end;
+
+    private volatile int prepared;
+    private volatile boolean released;
+
+    /**
+     * @param dir where the temporary file of the codes goes, it is deleted at once and only lives
+     *            as long as its mapping
+     */
+    public FrameStore(FrameSource source, File dir) throws IOException {
+        this.source = source;
+        this.count = source.size();
+        this.offsets = new long[count];
+        this.sides = new short[count];
+        File file = File.createTempFile("frames-", ".tmp", dir);
+        try {
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+        } finally {
+            file.delete();
+        }
+    }
+
+    public FrameSource getSource() {
+        return source;
+    }
+
+    public int getPrepared() {
+        return prepared;
+    }
+
+    /**
+     * Draws the frame at the given position into a cell of the target, from the store if it is
+     * there, encoding it otherwise.  Called in background only, see {@link FrameRing}.
+     */
+    public void draw(long position, QrRenderer renderer, Bitmap target, int left, int top) throws Exception {
+        draw(position, 1, renderer, target, left, top);
+    }
+
+    /**
+     * Draws {@code channels} frames from the given position into one cell of the target, one per
+     * colour channel (see {@link QrRenderer}).
+     */
+    public void draw(long position, int channels, QrRenderer renderer, Bitmap target, int left, int top) throws Exception {
+        for (int c = 0; c < channels; c++) {
+            long index = source.isCyclic() ? (position + c) % count : position + c;
+            long[] packed = renderer.buffer(c);
+            if (index < prepared) {
+                int i = (int) index;
+                load(offsets[i], packed, QrRenderer.words(sides[i]));
+                renderer.setCode(c, packed, sides[i]);
+            } else {
+                ByteMatrix matrix = QrRenderer.encode(source.frame(position + c), source.getCharset(), source.getErrorCorrection());
+                QrRenderer.pack(matrix, packed);
+                renderer.setCode(c, packed, matrix.getWidth());
+            }
+        }
+        renderer.draw(channels, target, left, top);
+    }
+
+    /**
+     * Encodes the whole loop on the workers, keeping at most {@code parallelism} frames in flight.
+     * Blocks the calling thread until every frame is handed out.  The text of the frames is taken
+     * here, so a frame that is not read from the file yet is waited for on the source by this
+     * thread rather than by the workers.
+     */
+    public void prepare(Executor workers, int parallelism, ProgressListener listener) throws InterruptedException {
+        final Semaphore slots = new Semaphore(parallelism);
+        final long started = SystemClock.elapsedRealtime();
+        for (int i = 0; i < count && !released; i++) {
+            final String text;
+            try {
+                text = source.frame(i);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to read frame " + i, e);
+                return;
+            }
+            slots.acquire();
+            final int index = i;
+            workers.execute(() -> {
+                try {
+                    if (!released) {
+                        ByteMatrix matrix = QrRenderer.encode(text, source.getCharset(), source.getErrorCorrection());
+                        int side = matrix.getWidth();
+                        long[] packed = new long[QrRenderer.words(side)];
+                        QrRenderer.pack(matrix, packed);
+                        offsets[index] = store(packed);
+                        sides[index] = (short) side;
+                        complete(index, started, listener);
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Failed to encode frame " + index, e);
+                } finally {
+                    slots.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Stops the preparation, the frames are encoded on demand afterwards.  The frames prepared
+     * stay readable, the file goes with the last reference to the store.
+     */
+    public void release() {
+        released = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close the frame file", e);
+        }
+    }
+
+    /**
+     * Writes a packed code to the file, within a single segment.
+     *
+     * @return offset of the code
+     */
+    private long store(long[] packed) throws IOException {
+        int size = packed.length * 8;
+        ByteBuffer segment;
+        long offset;
+        synchronized (this) {
+            if (end % SEGMENT_SIZE + size > SEGMENT_SIZE) end += SEGMENT_SIZE - end % SEGMENT_SIZE;
+            offset = end;
+            end += size;
+            while (segments.size() <= offset / SEGMENT_SIZE) {
+                segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long) segments.size() * SEGMENT_SIZE, SEGMENT_SIZE));
+            }
+            segment = segments.get((int) (offset / SEGMENT_SIZE)).duplicate();
+        }
+        segment.position((int) (offset % SEGMENT_SIZE));
+        segment.asLongBuffer().put(packed);
+        return offset;
+    }
+
+    private void load(long offset, long[] packed, int words) {
+        ByteBuffer segment;
+        synchronized (this) {
+            segment = segments.get((int) (offset / SEGMENT_SIZE)).duplicate();
+        }
+        segment.position((int) (offset % SEGMENT_SIZE));
+        segment.asLongBuffer().get(packed, 0, words);
+    }
+
+    private void complete(int index, long started, ProgressListener listener) {
+        synchronized (this) {
+            done.set(index);
+            int ready = done.nextClearBit(prepared);
+            if (ready == prepared) return;
+            prepared = ready;
+            if (listener != null) {
+                long elapsed = Math.max(1, SystemClock.elapsedRealtime() - started);
+                listener.onProgress(ready, count, ready * 1000f / elapsed);
+            }
+        }
+    }
+}
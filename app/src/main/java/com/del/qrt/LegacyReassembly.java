@@ -0,0 +1,202 @@
+package com.del.qrt;
+
+import com.del.qr.Message;
+import com.del.qr.MessageEncoder;
+import com.del.qr.Part;
+import com.del.qr.utils.StringUtil;
+import com.del.qrt.transfer.ReassemblyFile;
+import com.del.qrt.transfer.ReceivedMessage;
+import com.del.qrt.transfer.ResumableTransfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Transfer of the first protocol version being received.  Part 0 carries the name, the others the
+ * body in parts of equal size but the last one.  The parts are decoded once and written to a
+ * {@link ReassemblyFile}, which is created as soon as a part tells the part size; until then the
+ * last part is the only one that may have to wait on the heap.
+ * <p/>
+ * The key does not tell the content: a file edited and sent again under the same name has the
+ * same key.  The hashes of the parts are saved with them, and a part seen again with another hash
+ * than the one taken over fails the transfer, so its saved parts are dropped and it starts anew.
+ */
+class LegacyReassembly implements ResumableTransfer {
+
+    private final File dir;
+    private final String name;
+    private final int count;
+    // hash of every body part received, part i at i - 1
+    private final int[] hashes;
+    private ReassemblyFile file;
+    private byte[] last;
+    private int lastLength;
+
+    /**
+     * @param meta part 0 of the transfer
+     */
+    LegacyReassembly(Part meta, File dir) {
+        this.dir = dir;
+        this.name = meta.getBody();
+        this.count = meta.getSize();
+        this.hashes = new int[count];
+    }
+
+    /**
+     * Raw name of the transfer, the body of part 0.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * The transfer has no id, it is told by the name and the number of parts.
+     */
+    @Override
+    public String getKey() {
+        return String.format("l%08x-%d", name.hashCode(), count);
+    }
+
+    @Override
+    public long getLength() {
+        if (file == null || !file.has(count - 1)) return -1;
+        return (long) (count - 1) * file.getPartSize() + lastLength;
+    }
+
+    @Override
+    public int getPartSize() {
+        return file != null ? file.getPartSize() : 0;
+    }
+
+    /**
+     * Number of parts with part 0.
+     */
+    @Override
+    public int getPartCount() {
+        return count + 1;
+    }
+
+    int getReceivedCount() {
+        return 1 + (file != null ? file.getReceivedCount() : last != null ? 1 : 0);
+    }
+
+    boolean isComplete() {
+        return count == 0 || file != null && file.isComplete();
+    }
+
+    boolean has(int index) {
+        if (index == 0) return true;
+        if (file == null) return index == count && last != null;
+        return file.has(index - 1);
+    }
+
+    /**
+     * First index not received yet.
+     */
+    int firstMissing() {
+        if (isComplete()) return count + 1;
+        return file != null ? file.firstMissing() + 1 : 1;
+    }
+
+    /**
+     * Hash of a part received, as told by its header.
+     */
+    int getHash(int index) {
+        return index == 0 ? name.hashCode() : hashes[index - 1];
+    }
+
+    /**
+     * @return false if the part was received already
+     * @throws IOException if the part was received already with another hash
+     */
+    boolean add(Part part) throws IOException {
+        int index = part.getIndex();
+        if (index <= 0 || index > count) return false;
+        if (has(index)) {
+            if (part.getHash() != hashes[index - 1]) throw new IOException("Части не совпадают с полученными ранее");
+            return false;
+        }
+        hashes[index - 1] = part.getHash();
+        byte[] bytes = StringUtil.stringToByteArray(part.getBody());
+        if (index == count) lastLength = bytes.length;
+        if (file == null) {
+            if (index == count && count > 1) {
+                // the size of the other parts is not known yet
+                last = bytes;
+                return true;
+            }
+            file = new ReassemblyFile(dir, getKey(), (long) count * bytes.length, bytes.length);
+            if (last != null) {
+                file.put(count - 1, last, 0, last.length);
+                last = null;
+            }
+        }
+        return file.put(index - 1, bytes, 0, bytes.length);
+    }
+
+    /**
+     * The complete message, read from the reassembly file which it takes over.
+     */
+    ReceivedMessage open() throws IOException {
+        if (!isComplete()) throw new IOException("Передача не завершена");
+        Message header = new Message();
+        MessageEncoder.encodeMetaPart(header, name);
+        long length = count > 0 ? (long) (count - 1) * file.getPartSize() + lastLength : 0;
+        return new ReceivedMessage(header, file, 0, length);
+    }
+
+    /**
+     * Bits of the body parts, part {@code i} is bit {@code i - 1}.
+     */
+    @Override
+    public BitSet getReceived() {
+        return file != null ? file.getReceived() : new BitSet();
+    }
+
+    @Override
+    public byte[] getFingerprint() {
+        ByteBuffer fingerprint = ByteBuffer.allocate(count * 4);
+        fingerprint.asIntBuffer().put(hashes);
+        return fingerprint.array();
+    }
+
+    /**
+     * Parts saved without their hashes cannot be told from those of another file, they are not
+     * taken over.
+     */
+    @Override
+    public boolean restore(long length, int partSize, BitSet received) {
+        return false;
+    }
+
+    @Override
+    public boolean restore(long length, int partSize, BitSet received, byte[] fingerprint) throws IOException {
+        if (partSize <= 0 || file != null || count == 0) return false;
+        if (fingerprint == null || fingerprint.length != count * 4) return false;
+        ByteBuffer.wrap(fingerprint).asIntBuffer().get(hashes);
+        file = new ReassemblyFile(dir, getKey(), (long) count * partSize, partSize);
+        if (received.get(count - 1)) {
+            if (length < 0) received.clear(count - 1);
+            else lastLength = (int) (length - (long) (count - 1) * partSize);
+        }
+        file.restore(received);
+        return true;
+    }
+
+    @Override
+    public void flush() {
+        if (file != null) file.flush();
+    }
+
+    @Override
+    public void delete() {
+        if (file != null) file.delete();
+    }
+
+    @Override
+    public void close() {
+        if (file != null) file.close();
+    }
+}
@@ -32,13 +32,15 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 import android.view.KeyEvent;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.WindowManager;
+import android.widget.LinearLayout;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -50,25 +52,23 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
 import com.del.qr.Message;
-import com.del.qr.MessageEncoder;
-import com.del.qr.Part;
 import com.del.qrt.camera.CameraSource;
 import com.del.qrt.camera.CameraSourcePreview;
 import com.del.qrt.camera.GraphicOverlay;
+import com.del.qrt.db.AppDatabase;
+import com.del.qrt.transfer.ReceivedMessage;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
+import com.google.android.gms.vision.Detector;
 import com.google.android.gms.vision.MultiProcessor;
 import com.google.android.gms.vision.barcode.Barcode;
 import com.google.android.gms.vision.barcode.BarcodeDetector;
 import com.google.android.material.snackbar.Snackbar;
 
-import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
-import java.nio.charset.StandardCharsets;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Main activity demonstrating how to pass extra parameters to an activity that
@@ -78,9 +78,8 @@ public class MainActivity extends AppCompatActivity implements BarcodeGraphicTra
 
     private static final String TAG = "QR-transfer-main";
 
-    // use a compound button so either checkbox or switch widgets work.
-    private TextView uploadInfoMessage;
-    private ProgressBar progressBar;
+    // one progress row per transfer being received
+    private LinearLayout transfers;
 
     // intent request code to handle updating play services if needed.
     private static final int RC_HANDLE_GMS = 9001;
@@ -88,14 +87,25 @@ public class MainActivity extends AppCompatActivity implements BarcodeGraphicTra
     // permission request codes need to be < 256
     private static final int RC_HANDLE_PERM = 2;
 
+    // Camera preview requested for scanning, the sender sizes its codes for it
+    static final int PREVIEW_WIDTH = 1600;
+    static final int PREVIEW_HEIGHT = 1024;
+
+    // detectors of the pool, each one with a preview buffer in work
+    private static final int MAX_DETECTORS = 8;
+    private static final int DETECTORS = Math.min(MAX_DETECTORS, Runtime.getRuntime().availableProcessors());
+
     private CameraSource mCameraSource;
     private CameraSourcePreview mPreview;
     private GraphicOverlay<BarcodeGraphic> mGraphicOverlay;
 
-    private final Map<Integer, String> bodyTotal = new ConcurrentHashMap<>();
-    private int countTotal = 0;
-    private String name;
+    private ReassemblyWorker reassembly;
+    // Texts of the current camera frame, used from one thread at a time, serialized by the processor
+    private final List<String> batch = new ArrayList<>();
     private transient boolean ready;
+    private boolean colorChannels = false;
+    private boolean parallelDetection = DETECTORS > 1;
+    private boolean trackRegion = true;
 
     final private ActivityResultLauncher<String> requestCameraPermissions =
             registerForActivityResult(new ActivityResultContracts.RequestPermission(), isGranted -> {
@@ -128,13 +138,24 @@ public class MainActivity extends AppCompatActivity implements BarcodeGraphicTra
 
         mPreview = findViewById(R.id.preview);
         mGraphicOverlay = findViewById(R.id.graphicOverlay);
-        uploadInfoMessage = findViewById(R.id.upload_info);
-        progressBar = findViewById(R.id.progress_bar);
-        progressBar.setMax(0);
-        progressBar.setProgress(0);
+        transfers = findViewById(R.id.transfers);
         findViewById(R.id.fbHelp).setOnClickListener(this);
         findViewById(R.id.fbSend).setOnClickListener(this);
 
+        reassembly = new ReassemblyWorker(new Handler(Looper.getMainLooper()), new ReassemblyWorker.Listener() {
+            @Override
+            public void onProgress(List<ReassemblyWorker.Progress> progress) {
+                showProgress(progress);
+            }
+
+            @Override
+            public void onMessage(ReceivedMessage message) {
+                // Process received file, the other transfers go on
+                new SavePackageTask().execute(message);
+            }
+        }, getCacheDir(), AppDatabase.get(this).transferStates());
+        reassembly.start();
+
         checkCameraPermissions();
         checkStorageWritePermissions();
         getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
@@ -223,10 +244,10 @@ public class MainActivity extends AppCompatActivity implements BarcodeGraphicTra
         // is set to receive the barcode detection results, track the barcodes, and maintain
         // graphics for each barcode on screen.  The factory is used by the multi-processor to
         // create a separate tracker instance for each barcode.
-        BarcodeDetector barcodeDetector = new BarcodeDetector.Builder(context).build();
-        BarcodeTrackerFactory barcodeFactory = new BarcodeTrackerFactory(mGraphicOverlay, this);
-        barcodeDetector.setProcessor(
-                new MultiProcessor.Builder<>(barcodeFactory).build());
+        // Only QR codes are sent; the sender may show several of them at once and every one of
+        // them gets its own tracker.
+        RoiDetector.Region region = new RoiDetector.Region();
+        Detector<Barcode> barcodeDetector = createBarcodeDetector(context, region);
 
         if (!barcodeDetector.isOperational()) {
             // Note: The first time that an app using the barcode or face API is installed on a
@@ -256,15 +277,100 @@ public class MainActivity extends AppCompatActivity implements BarcodeGraphicTra
         // at long distances.
         CameraSource.Builder builder = new CameraSource.Builder(getApplicationContext(), barcodeDetector)
                 .setFacing(CameraSource.CAMERA_FACING_BACK)
-                .setRequestedPreviewSize(1600, 1024)
+                .setRequestedPreviewSize(PREVIEW_WIDTH, PREVIEW_HEIGHT)
                 .setRequestedFps(15.0f);
 
         // make sure that auto focus is an available option
         builder = builder.setFocusMode(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
 
+        // the sender holds every code for several frames, detect a picture once
+        builder = builder.setFrameGate(true);
+
+        // colour multiplexed codes: every channel gets its own detector and trackers
+        if (colorChannels) {
+            // every channel keeps its own region, a channel may hold no code at all
+            builder = builder.setChannelDetectors(createBarcodeDetector(context, new RoiDetector.Region()),
+                    createBarcodeDetector(context, new RoiDetector.Region()));
+        } else if (parallelDetection) {
+            // frames are detected on all the cores and tracked in order by one processor
+            List<Detector<Barcode>> detectors = new ArrayList<>();
+            detectors.add(barcodeDetector);
+            while (detectors.size() < DETECTORS) {
+                detectors.add(newBarcodeDetector(context, region));
+            }
+            builder = builder.setDetectorPool(detectors, createBarcodeProcessor());
+        }
+
         mCameraSource = builder.build();
     }
 
+    private Detector<Barcode> createBarcodeDetector(Context context, RoiDetector.Region region) {
+        Detector<Barcode> barcodeDetector = newBarcodeDetector(context, region);
+        barcodeDetector.setProcessor(createBarcodeProcessor());
+        return barcodeDetector;
+    }
+
+    /**
+     * Detector without a processor, cropping the frames around the codes found if the region
+     * is tracked.
+     */
+    private Detector<Barcode> newBarcodeDetector(Context context, RoiDetector.Region region) {
+        BarcodeDetector barcodeDetector = new BarcodeDetector.Builder(context)
+                .setBarcodeFormats(Barcode.QR_CODE)
+                .build();
+        return trackRegion ? new RoiDetector(barcodeDetector, region) : barcodeDetector;
+    }
+
+    private Detector.Processor<Barcode> createBarcodeProcessor() {
+        BarcodeTrackerFactory barcodeFactory = new BarcodeTrackerFactory(mGraphicOverlay, this);
+        return new FrameBatchProcessor(new MultiProcessor.Builder<>(barcodeFactory).build(), this);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        menu.findItem(R.id.color_channels).setChecked(colorChannels);
+        menu.findItem(R.id.parallel_detection).setChecked(parallelDetection);
+        menu.findItem(R.id.track_region).setChecked(trackRegion);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.color_channels) {
+            colorChannels = !colorChannels;
+            item.setChecked(colorChannels);
+            if (mCameraSource != null) {
+                // the channel detectors are set up when the camera source is built
+                mPreview.release();
+                createCameraSource();
+                startCameraSource();
+            }
+            return true;
+        }
+        if (item.getItemId() == R.id.parallel_detection) {
+            parallelDetection = !parallelDetection;
+            item.setChecked(parallelDetection);
+            if (mCameraSource != null) {
+                mPreview.release();
+                createCameraSource();
+                startCameraSource();
+            }
+            return true;
+        }
+        if (item.getItemId() == R.id.track_region) {
+            trackRegion = !trackRegion;
+            item.setChecked(trackRegion);
+            if (mCameraSource != null) {
+                mPreview.release();
+                createCameraSource();
+                startCameraSource();
+            }
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
     /**
      * Restarts the camera.
      */
@@ -295,6 +401,7 @@ public class MainActivity extends AppCompatActivity implements BarcodeGraphicTra
         if (mPreview != null) {
             mPreview.release();
         }
+        reassembly.stop();
     }
 
     /**
@@ -323,97 +430,56 @@ public class MainActivity extends AppCompatActivity implements BarcodeGraphicTra
         }
     }
 
-    @Override
-    public void onBarcodeDetected(Barcode barcode) {
-        //do something with barcode data returned
-        if (ready) new ReadBarcodeTask().execute(barcode);
-
-    }
-
-    @SuppressLint("StaticFieldLeak")
-    private class ReadBarcodeTask extends AsyncTask<Barcode, Void, Message> {
-
-        public ReadBarcodeTask() {
-            super();
+    /**
+     * Shows a row per transfer in progress, the rows are reused.
+     */
+    private void showProgress(List<ReassemblyWorker.Progress> progress) {
+        while (transfers.getChildCount() < progress.size()) {
+            getLayoutInflater().inflate(R.layout.transfer_progress, transfers);
         }
-
-        @Override
-        protected Message doInBackground(Barcode... s) {
-            if (s != null && s.length > 0) {
-                String hex = s[0].rawValue;
-                if (hex != null && hex.length() > 7) {
-                    try {
-                        Part p = MessageEncoder.encodeStr(hex);
-                        if (p != null) {
-                            int index = p.getIndex();
-                            int count = p.getSize();
-                            if (index == 0 && (countTotal == 0 || !p.getBody().equals(name))) {
-                                countTotal = count + 1;
-                                name = p.getBody();
-                                bodyTotal.clear();
-                            }
-                            if (index < countTotal && !bodyTotal.containsKey(index)) {
-                                Log.i(TAG, "*** Detect part " + index + " of " + count + " ***");
-                                bodyTotal.put(index, hex);
-                                if (bodyTotal.size() == countTotal) {
-                                    Log.i(TAG, "*** FINISH ***");
-                                    ready = false;
-                                    return MessageEncoder.encode(bodyTotal.values());
-                                }
-                            }
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "*** Bad part: " + hex + "  ***", e);
-                    }
-
-                }
+        for (int i = 0; i < transfers.getChildCount(); i++) {
+            View row = transfers.getChildAt(i);
+            if (i >= progress.size()) {
+                row.setVisibility(View.GONE);
+                continue;
             }
-            return null;
+            ReassemblyWorker.Progress p = progress.get(i);
+            ProgressBar progressBar = row.findViewById(R.id.progress_bar);
+            progressBar.setMax(p.getTotal());
+            progressBar.setProgress(p.getReceived());
+            ((TextView) row.findViewById(R.id.upload_info)).setText(p.getText());
+            row.setVisibility(View.VISIBLE);
         }
+    }
 
-        @Override
-        protected void onPostExecute(Message data) {
-            if (data != null) {
-                // Process received file
-                uploadInfoMessage.setText("");
-                progressBar.setProgress(bodyTotal.size());
-                new SavePackageTask().execute(data);
-                countTotal = 0;
-                bodyTotal.clear();
-            }
-            if (countTotal > 0) {
-                int waitIndex = 0;
-                while (waitIndex <= countTotal) {
-                    if (!bodyTotal.containsKey(waitIndex++)) break;
-                }
-                String _name = "-";
-                try {
-                    _name = new String(name.getBytes("ISO-8859-15"), StandardCharsets.UTF_8);
-                } catch (UnsupportedEncodingException e) {
-                    Log.e(TAG, "UnsupportedEncodingException", e);
-                }
-                uploadInfoMessage.setText(String.format("%s получено %s из %s жду %s", _name, bodyTotal.size(), countTotal, waitIndex));
-                progressBar.setMax(countTotal);
-                progressBar.setProgress(bodyTotal.size());
-            }
-        }
+    @Override
+    public void onBarcodeDetected(Barcode barcode) {
+        if (ready && barcode.rawValue != null) batch.add(barcode.rawValue);
+    }
+
+    @Override
+    public void onFrameDone() {
+        if (batch.isEmpty()) return;
+        reassembly.submit(batch.toArray(new String[0]));
+        batch.clear();
     }
 
     @SuppressLint("StaticFieldLeak")
-    private class SavePackageTask extends AsyncTask<Message, Void, String> {
+    private class SavePackageTask extends AsyncTask<ReceivedMessage, Void, String> {
 
         public SavePackageTask() {
             super();
         }
 
         @Override
-        protected String doInBackground(Message... s) {
+        protected String doInBackground(ReceivedMessage... s) {
             if (s != null && s.length > 0) {
-                Message m = s[0];
-                if (m != null) {
+                ReceivedMessage received = s[0];
+                if (received != null) {
                     try {
-                        m.unzip();
-                        if (m.isClipboard()) {
+                        if (received.isClipboard()) {
+                            Message m = received.toMessage();
+                            m.unzip();
                             Handler mainThreadHandler = new Handler(Looper.getMainLooper());
                             final String text = m.getTextUTF();
                             mainThreadHandler.post(() -> {
@@ -426,22 +492,16 @@ public class MainActivity extends AppCompatActivity implements BarcodeGraphicTra
                             });
                             return "Текст получен и будет скопирован в буфер обмена";
                         } else {
-                            File directory = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
-                            File file = new File(directory, m.getName());
-                            Log.i(TAG, String.format("Try to create file: %s", file.getAbsolutePath()));
-                            if (file.exists() || file.createNewFile()) {
-                                FileOutputStream fout = new FileOutputStream(file);
-                                fout.write(m.getBody());
-                                fout.flush();
-                                fout.close();
-                                return String.format(getString(R.string.unzip_stage_4), file.getAbsolutePath());
-                            } else {
-                                return String.format("Не удалось сохранить файл '%s'", file.getAbsolutePath());
-                            }
+                            // inflated and written block by block straight from the reassembly file
+                            InputStream body = received.openContent();
+                            String location = Downloads.save(MainActivity.this, received.getName(), body);
+                            return String.format(getString(R.string.unzip_stage_4), location);
                         }
                     } catch (Exception e) {
                         Log.e(TAG, "Extract data error", e);
                         return "Не удалось сохранить файл: " + e.getMessage();
+                    } finally {
+                        received.close();
                     }
                 }
             }
@@ -454,11 +514,7 @@ public class MainActivity extends AppCompatActivity implements BarcodeGraphicTra
                 AlertDialog.Builder builder = new AlertDialog.Builder(MainActivity.this);
                 builder.setTitle(R.string.dialog_header)
                         .setMessage(s)
-                        .setPositiveButton(R.string.ok, (dialogInterface, i) -> {
-                            ready = true;
-                            progressBar.setProgress(0);
-                            name = null;
-                        }).show();
+                        .setPositiveButton(R.string.ok, (dialogInterface, i) -> reassembly.reset()).show();
             }
         }
     }
@@ -0,0 +1,196 @@
+package com.del.qrt;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.encoder.ByteMatrix;
+import com.google.zxing.qrcode.encoder.Encoder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Encodes QR codes into packed module bits and draws them into recycled bitmaps without
+ * allocating: the pixel row and the mapping of pixel columns to modules are kept between frames.
+ * One instance per target bitmap, instances are not thread safe.
+ * <p/>
+ * Packed form: module {@code (x, y)} of a code of {@code side} modules is bit
+ * {@code y * side + x} of a {@code long[]}, the quiet zone is not stored.
+ * <p/>
+ * Up to {@link #CHANNELS} codes can be composited into one cell, one per colour channel: a pixel
+ * has full red where the module of the first code is light, full green for the second and full
+ * blue for the third.  The receiver separates the channels back before detection.
+ */
+public class QrRenderer {
+
+    private static final QRCodeWriter WRITER = new QRCodeWriter();
+    private static final Map<EncodeHintType, Object> HINTS = hints("UTF-8");
+    private static final Map<EncodeHintType, Object> LATIN1_HINTS = hints("ISO-8859-1");
+    private static final int QUIET_ZONE = 4;
+
+    /**
+     * Most codes drawn into one cell.
+     */
+    public static final int CHANNELS = 3;
+
+    /**
+     * Side of the largest code, version 40.
+     */
+    public static final int MAX_SIDE = 177;
+    private static final int[] CHANNEL_COLORS = {Color.RED & 0xFFFFFF, Color.GREEN & 0xFFFFFF, Color.BLUE & 0xFFFFFF};
+
+    private static Map<EncodeHintType, Object> hints(String charset) {
+        Map<EncodeHintType, Object> hints = new EnumMap<>(EncodeHintType.class);
+        hints.put(EncodeHintType.CHARACTER_SET, charset);
+        hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.L);
+        return Collections.unmodifiableMap(hints);
+    }
+
+    private final int[] row;
+    private final int[][] columns = new int[CHANNELS][];
+    private final int[] modules = new int[CHANNELS];
+    private final long[][] codes = new long[CHANNELS][];
+    private final long[][] buffers = new long[CHANNELS][];
+    private final int[] sides = new int[CHANNELS];
+    private final int[] filled = new int[CHANNELS];
+
+    public QrRenderer(int width) {
+        this.row = new int[width];
+        for (int c = 0; c < CHANNELS; c++) {
+            columns[c] = new int[width];
+        }
+        Arrays.fill(modules, -1);
+    }
+
+    /**
+     * Encodes the text into modules, byte mode data in the given character set.  Thread safe.
+     */
+    public static ByteMatrix encode(String text, String charset, ErrorCorrectionLevel level) throws WriterException {
+        Map<EncodeHintType, Object> hints = "ISO-8859-1".equals(charset) ? LATIN1_HINTS
+                : "UTF-8".equals(charset) ? HINTS : hints(charset);
+        return Encoder.encode(text, level, hints).getMatrix();
+    }
+
+    /**
+     * Number of longs needed to pack a code of the given side.
+     */
+    public static int words(int side) {
+        return (side * side + 63) >>> 6;
+    }
+
+    /**
+     * Packs the modules into {@code bits}, which must hold at least {@link #words(int)} longs.
+     */
+    public static void pack(ByteMatrix matrix, long[] bits) {
+        int side = matrix.getWidth();
+        byte[][] rows = matrix.getArray();
+        Arrays.fill(bits, 0, words(side), 0L);
+        int i = 0;
+        for (int y = 0; y < side; y++) {
+            byte[] row = rows[y];
+            for (int x = 0; x < side; x++, i++) {
+                if (row[x] == 1) bits[i >>> 6] |= 1L << i;
+            }
+        }
+    }
+
+    static BitMatrix encode(String text, int width, int height) throws WriterException {
+        return WRITER.encode(text, BarcodeFormat.QR_CODE, width, height, HINTS);
+    }
+
+    /**
+     * Draws a packed code with its quiet zone into the square cell of the target at the given
+     * corner, scaled to fill the cell.  Cells are as wide as this renderer.
+     */
+    public void draw(long[] bits, int side, Bitmap target, int left, int top) {
+        setCode(0, bits, side);
+        draw(1, target, left, top);
+    }
+
+    /**
+     * Buffer of the renderer for the packed code of a colour channel, large enough for any code,
+     * see {@link #pack(ByteMatrix, long[])}.
+     */
+    public long[] buffer(int channel) {
+        if (buffers[channel] == null) buffers[channel] = new long[words(MAX_SIDE)];
+        return buffers[channel];
+    }
+
+    /**
+     * Sets the code of a colour channel for the next {@link #draw(int, Bitmap, int, int)}.
+     */
+    public void setCode(int channel, long[] bits, int side) {
+        codes[channel] = bits;
+        sides[channel] = side;
+    }
+
+    /**
+     * Draws the codes of the first {@code channels} channels into the square cell of the target:
+     * a single code in black and white, more of them composited by colour channel.
+     */
+    public void draw(int channels, Bitmap target, int left, int top) {
+        int width = row.length;
+        int height = width;
+        for (int c = 0; c < channels; c++) {
+            int side = sides[c];
+            if (side != modules[c]) {
+                int size = side + 2 * QUIET_ZONE;
+                int[] map = columns[c];
+                for (int x = 0; x < width; x++) {
+                    map[x] = x * size / width - QUIET_ZONE;
+                }
+                modules[c] = side;
+            }
+        }
+        Arrays.fill(filled, 0, channels, Integer.MIN_VALUE);
+        for (int y = 0; y < height; y++) {
+            boolean changed = false;
+            for (int c = 0; c < channels; c++) {
+                int my = y * (sides[c] + 2 * QUIET_ZONE) / height - QUIET_ZONE;
+                if (my != filled[c]) {
+                    filled[c] = my;
+                    changed = true;
+                }
+            }
+            if (changed) {
+                // pixel rows of the same module rows are identical
+                if (channels == 1) {
+                    fillRow(0, Color.WHITE, true);
+                } else {
+                    for (int c = 0; c < channels; c++) {
+                        fillRow(c, CHANNEL_COLORS[c], c == 0);
+                    }
+                }
+            }
+            target.setPixels(row, 0, width, left, top + y, width, 1);
+        }
+    }
+
+    /**
+     * Sets {@code light} in the row pixels where the module of the channel is light, the first
+     * channel overwrites the row.
+     */
+    private void fillRow(int channel, int light, boolean first) {
+        long[] bits = codes[channel];
+        int side = sides[channel];
+        int my = filled[channel];
+        int[] map = columns[channel];
+        boolean quiet = my < 0 || my >= side;
+        int base = my * side;
+        for (int x = 0; x < row.length; x++) {
+            int mx = map[x];
+            int i = base + mx;
+            boolean dark = !quiet && mx >= 0 && mx < side && (bits[i >>> 6] & (1L << i)) != 0;
+            int pixel = dark ? 0 : light;
+            row[x] = first ? Color.BLACK | pixel : row[x] | pixel;
+        }
+    }
+}
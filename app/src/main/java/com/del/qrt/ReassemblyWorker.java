@@ -0,0 +1,621 @@
+package com.del.qrt;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.del.qr.MessageEncoder;
+import com.del.qr.Part;
+import com.del.qrt.db.TransferState;
+import com.del.qrt.db.TransferStateDao;
+import com.del.qrt.transfer.FountainDecoder;
+import com.del.qrt.transfer.FrameProbe;
+import com.del.qrt.transfer.PartDecoder;
+import com.del.qrt.transfer.PayloadCodec;
+import com.del.qrt.transfer.ReassemblyFile;
+import com.del.qrt.transfer.ReceivedMessage;
+import com.del.qrt.transfer.ResumableTransfer;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reassembles the received files on one dedicated thread.  The detection hands over the
+ * texts of the codes found in a camera frame as one batch through a bounded lock-free queue; the
+ * worker owns all of the reassembly state, so nothing is shared with the other threads but the
+ * queue and the published snapshots.
+ * <p/>
+ * Every transfer in view has its own session, told by its transfer id, so several senders can be
+ * received at once and a stray code of another transfer does not disturb the one in progress.
+ * <p/>
+ * Most texts are repeats of a frame still on screen.  They are recognised from the frame header
+ * read straight from the text (see {@link FrameProbe}) against the bitsets of the parts already
+ * held, and dropped before any parsing.
+ * <p/>
+ * The queue has a single producer: batches are submitted from one thread at a time, serialized by
+ * the processor of the detections.  When it is full the batch is dropped, the sender shows the
+ * same frames again anyway.
+ * <p/>
+ * The progress of every transfer is saved now and then (see {@link ResumableTransfer}), so a
+ * transfer interrupted by the user or by the death of the process goes on from the parts already
+ * received when it is seen again.
+ */
+public class ReassemblyWorker implements Runnable {
+
+    private static final String TAG = "QR-transfer-reassembly";
+
+    // power of two
+    private static final int QUEUE_SIZE = 64;
+    private static final int LEGACY_HEADER = 8;
+    private static final long SAVE_INTERVAL = 1000;
+    // saved transfers not seen for that long are dropped
+    private static final long KEEP_TIME = 7L * 24 * 60 * 60 * 1000;
+    // transfers received at once, the least recently seen one is suspended beyond
+    private static final int MAX_SESSIONS = 4;
+
+    /**
+     * Progress of one transfer at some point, immutable.
+     */
+    public static class Progress {
+        private final String text;
+        private final int received;
+        private final int total;
+
+        Progress(String text, int received, int total) {
+            this.text = text;
+            this.received = received;
+            this.total = total;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public int getReceived() {
+            return received;
+        }
+
+        public int getTotal() {
+            return total;
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the handler thread when the progress changed, one entry per transfer in
+         * progress.
+         */
+        void onProgress(List<Progress> progress);
+
+        /**
+         * Called on the handler thread with the message of a complete transfer, which must be
+         * closed once saved.  The worker ignores the codes of that transfer until
+         * {@link #reset()}, the others go on.
+         */
+        void onMessage(ReceivedMessage message);
+    }
+
+    private final Handler handler;
+    private final Listener listener;
+    private final File dir;
+    private final TransferStateDao states;
+
+    private final AtomicReferenceArray<String[]> queue = new AtomicReferenceArray<>(QUEUE_SIZE);
+    // next slot to take, written by the worker
+    private final AtomicLong head = new AtomicLong();
+    // next slot to fill, written by the producer
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile Thread thread;
+    private volatile boolean resetRequested;
+
+    // Owned by the worker thread
+    private final List<Session> sessions = new ArrayList<>();
+    private Progress[] published;
+    private long batches;
+    private boolean dirty;
+    private long savedAt;
+
+    /**
+     * @param dir    directory of the reassembly files, the cache of the application
+     * @param states where the progress is saved, null to not resume transfers
+     */
+    public ReassemblyWorker(Handler handler, Listener listener, File dir, TransferStateDao states) {
+        this.handler = handler;
+        this.listener = listener;
+        this.dir = dir;
+        this.states = states;
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+        thread = new Thread(this, TAG);
+        thread.start();
+    }
+
+    public synchronized void stop() {
+        Thread current = thread;
+        thread = null;
+        if (current != null) current.interrupt();
+    }
+
+    /**
+     * Hands over the texts of the codes detected in one camera frame.  Returns false when the
+     * queue is full and the batch was dropped.
+     */
+    public boolean submit(String[] batch) {
+        long t = tail.get();
+        if (t - head.get() >= QUEUE_SIZE) {
+            dropped.incrementAndGet();
+            return false;
+        }
+        queue.lazySet((int) t & (QUEUE_SIZE - 1), batch);
+        tail.lazySet(t + 1);
+        Thread worker = thread;
+        if (worker != null) LockSupport.unpark(worker);
+        return true;
+    }
+
+    /**
+     * Forgets the finished transfers, their codes are accepted again.
+     */
+    public void reset() {
+        resetRequested = true;
+        Thread worker = thread;
+        if (worker != null) LockSupport.unpark(worker);
+    }
+
+    /**
+     * Number of batches dropped on a full queue.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    @Override
+    public void run() {
+        Thread self = Thread.currentThread();
+        deleteStale();
+        while (thread == self) {
+            if (resetRequested) {
+                resetRequested = false;
+                clear();
+            }
+            long h = head.get();
+            if (h == tail.get()) {
+                LockSupport.park(this);
+                continue;
+            }
+            int slot = (int) h & (QUEUE_SIZE - 1);
+            String[] batch = queue.get(slot);
+            queue.lazySet(slot, null);
+            head.lazySet(h + 1);
+            batches++;
+            for (String text : batch) {
+                if (text == null || isDuplicate(text)) continue;
+                read(text);
+            }
+            if (dirty && SystemClock.elapsedRealtime() - savedAt >= SAVE_INTERVAL) {
+                for (Session session : sessions) save(session);
+                dirty = false;
+                savedAt = SystemClock.elapsedRealtime();
+            }
+            publish();
+        }
+        for (Session session : sessions) suspend(session);
+        sessions.clear();
+    }
+
+    /**
+     * Checks the header of the text against the parts already held, without parsing it.
+     */
+    private boolean isDuplicate(String text) {
+        PayloadCodec codec = PayloadCodec.detect(text);
+        if (codec == null) return isLegacyDuplicate(text);
+        int type = FrameProbe.type(codec, text);
+        if (type == FrameProbe.UNKNOWN) return false;
+        Session session = find(type == FrameProbe.FOUNTAIN ? Session.FOUNTAIN : Session.PARTS,
+                FrameProbe.transferId(codec, text, type));
+        if (session == null) return false;
+        session.seen = batches;
+        if (session.isDone() || type == FrameProbe.META) return true;
+        if (type == FrameProbe.FOUNTAIN) return session.fountain().hasSymbol(FrameProbe.symbolId(codec, text));
+        return session.parts().hasPart(FrameProbe.partIndex(codec, text));
+    }
+
+    /**
+     * Frames of the first protocol version: index, part count and hash of the body, one byte
+     * per character.
+     */
+    private boolean isLegacyDuplicate(String text) {
+        if (text.length() < LEGACY_HEADER) return false;
+        int index = legacyByte(text.charAt(0)) << 8 | legacyByte(text.charAt(1));
+        int count = legacyByte(text.charAt(2)) << 8 | legacyByte(text.charAt(3));
+        Session session = find(Session.LEGACY, count);
+        if (session == null) return false;
+        session.seen = batches;
+        if (session.isDone()) return true;
+        LegacyReassembly legacy = session.legacy();
+        if (!legacy.has(index)) return false;
+        // a new transfer starts with a part 0 of another name, a part of another hash tells that
+        // the parts taken over were of another file
+        int hash = legacyByte(text.charAt(4)) << 24 | legacyByte(text.charAt(5)) << 16
+                | legacyByte(text.charAt(6)) << 8 | legacyByte(text.charAt(7));
+        return hash == legacy.getHash(index);
+    }
+
+    /**
+     * Byte of a character of the first protocol version, which encodes bytes in ISO-8859-15.
+     */
+    private static int legacyByte(char c) {
+        if (c < 0x100) return c;
+        switch (c) {
+            case '\u20AC': return 0xA4;
+            case '\u0160': return 0xA6;
+            case '\u0161': return 0xA8;
+            case '\u017D': return 0xB4;
+            case '\u017E': return 0xB8;
+            case '\u0152': return 0xBC;
+            case '\u0153': return 0xBD;
+            case '\u0178': return 0xBE;
+            default: return 0;
+        }
+    }
+
+    /**
+     * Forgets the saved transfers not seen for long and the files nothing refers to.
+     */
+    private void deleteStale() {
+        Set<String> keep = new HashSet<>();
+        if (states != null) {
+            try {
+                states.deleteOlderThan(System.currentTimeMillis() - KEEP_TIME);
+                for (TransferState state : states.findAll()) {
+                    keep.add(state.key);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to read the saved transfers", e);
+                return;
+            }
+        }
+        ReassemblyFile.deleteStale(dir, keep);
+    }
+
+    /**
+     * Takes up the parts received in an earlier session of the transfer.
+     */
+    private void resume(ResumableTransfer transfer) {
+        if (states == null) return;
+        try {
+            TransferState state = states.find(transfer.getKey());
+            if (state != null && transfer.restore(state.length, state.partSize, BitSet.valueOf(state.received), state.fingerprint)) {
+                Log.i(TAG, "*** Resume " + transfer.getKey() + " with " + transfer.getReceived().cardinality() + " parts ***");
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to resume " + transfer.getKey(), e);
+        }
+    }
+
+    private void save(Session session) {
+        if (states == null || session.isDone()) return;
+        ResumableTransfer transfer = session.transfer;
+        try {
+            transfer.flush();
+            TransferState state = new TransferState();
+            state.key = transfer.getKey();
+            state.name = session.kind == Session.LEGACY ? displayName(session.legacy()) : null;
+            state.length = transfer.getLength();
+            state.partSize = transfer.getPartSize();
+            state.partCount = transfer.getPartCount();
+            state.received = transfer.getReceived().toByteArray();
+            state.fingerprint = transfer.getFingerprint();
+            state.updated = System.currentTimeMillis();
+            states.save(state);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to save " + transfer.getKey(), e);
+        }
+    }
+
+    /**
+     * Saves the transfer and lets it go, it is resumed when seen again.
+     */
+    private void suspend(Session session) {
+        if (session.isDone()) return;
+        save(session);
+        session.transfer.close();
+        session.transfer = null;
+    }
+
+    /**
+     * Drops the transfer with its data and saved progress.
+     */
+    private void discard(ResumableTransfer transfer) {
+        if (transfer == null) return;
+        transfer.delete();
+        forget(transfer);
+    }
+
+    private void forget(ResumableTransfer transfer) {
+        if (states == null) return;
+        try {
+            states.delete(transfer.getKey());
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to forget " + transfer.getKey(), e);
+        }
+    }
+
+    /**
+     * Forgets the finished transfers, the transfers in progress go on.
+     */
+    private void clear() {
+        for (Iterator<Session> i = sessions.iterator(); i.hasNext(); ) {
+            if (i.next().isDone()) i.remove();
+        }
+        published = null;
+    }
+
+    private Session find(int kind, int id) {
+        for (int i = 0, n = sessions.size(); i < n; i++) {
+            Session session = sessions.get(i);
+            if (session.kind == kind && session.id == id) return session;
+        }
+        return null;
+    }
+
+    /**
+     * Starts a session for a new transfer, or a new transfer of a legacy session, and takes up
+     * the parts received earlier.  The transfer in progress seen least recently is suspended when
+     * there are too many.
+     */
+    private Session open(Session session, int kind, int id, ResumableTransfer transfer) throws Exception {
+        if (session == null) {
+            int active = 0;
+            Session idle = null;
+            for (Session s : sessions) {
+                if (s.isDone()) continue;
+                active++;
+                if (idle == null || s.seen < idle.seen) idle = s;
+            }
+            if (active >= MAX_SESSIONS) {
+                Log.i(TAG, "*** Suspend " + idle.transfer.getKey() + " ***");
+                suspend(idle);
+                sessions.remove(idle);
+            }
+            session = new Session(kind, id);
+            sessions.add(session);
+        } else if (!session.isDone()) {
+            suspend(session);
+        }
+        session.transfer = transfer;
+        session.seen = batches;
+        resume(transfer);
+        try {
+            if (isComplete(session)) complete(session);
+        } catch (Exception e) {
+            fail(session, e);
+            session.transfer = null;
+        }
+        return session;
+    }
+
+    /**
+     * Drops a transfer that cannot be received, its codes start a new session.
+     */
+    private void fail(Session session, Exception e) {
+        Log.e(TAG, "*** Bad transfer ***", e);
+        if (session == null) return;
+        discard(session.transfer);
+        sessions.remove(session);
+    }
+
+    private void read(String hex) {
+        PayloadCodec codec = PayloadCodec.detect(hex);
+        if (codec != null) {
+            readFrame(codec, hex);
+            return;
+        }
+        if (hex.length() > 7) {
+            Session session = null;
+            try {
+                Part p = MessageEncoder.encodeStr(hex);
+                if (p != null) {
+                    int index = p.getIndex();
+                    int count = p.getSize();
+                    session = find(Session.LEGACY, count);
+                    if (session != null && session.isDone()) return;
+                    if (index == 0 && (session == null || !p.getBody().equals(session.legacy().getName()))) {
+                        Log.i(TAG, "*** Detect part " + index + " of " + count + " ***");
+                        session = open(session, Session.LEGACY, count, new LegacyReassembly(p, dir));
+                    } else if (session != null && session.legacy().add(p)) {
+                        Log.i(TAG, "*** Detect part " + index + " of " + count + " ***");
+                        added(session);
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "*** Bad part: " + hex + "  ***", e);
+                fail(session, e);
+            }
+        }
+    }
+
+    private void readFrame(PayloadCodec codec, String text) {
+        byte[] frame;
+        try {
+            frame = codec.decode(text);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "*** Bad frame: " + text + " ***", e);
+            return;
+        }
+        if (FountainDecoder.isFountainFrame(frame)) readFountainFrame(frame);
+        else if (PartDecoder.isPartFrame(frame)) readPartFrame(codec, frame);
+    }
+
+    private void readPartFrame(PayloadCodec codec, byte[] frame) {
+        int id = PartDecoder.transferId(frame);
+        Session session = find(Session.PARTS, id);
+        if (session != null && session.isDone()) return;
+        try {
+            if (PartDecoder.isMeta(frame)) {
+                if (session == null) open(null, Session.PARTS, id, PartDecoder.forMeta(frame, codec, dir));
+                return;
+            }
+            if (session == null) {
+                // joined in the middle of the loop, the meta frame comes later
+                session = open(null, Session.PARTS, id, PartDecoder.forData(frame, dir));
+                if (session.isDone()) return;
+            }
+            if (session.parts().add(frame)) added(session);
+        } catch (Exception e) {
+            fail(session, e);
+        }
+    }
+
+    private void readFountainFrame(byte[] frame) {
+        int id = FountainDecoder.transferId(frame);
+        Session session = find(Session.FOUNTAIN, id);
+        if (session != null && session.isDone()) return;
+        try {
+            if (session == null) {
+                session = open(null, Session.FOUNTAIN, id, FountainDecoder.forFrame(frame, dir));
+                if (session.isDone()) return;
+            }
+            if (session.fountain().add(frame)) added(session);
+        } catch (Exception e) {
+            fail(session, e);
+        }
+    }
+
+    private void added(Session session) throws Exception {
+        dirty = true;
+        if (isComplete(session)) complete(session);
+    }
+
+    private static boolean isComplete(Session session) {
+        switch (session.kind) {
+            case Session.LEGACY: return session.legacy().isComplete();
+            case Session.FOUNTAIN: return session.fountain().isComplete();
+            default: return session.parts().isComplete();
+        }
+    }
+
+    /**
+     * Hands over the message of a complete transfer along with its reassembly file, the body is
+     * saved from there.  The session stays to ignore the codes of the transfer until
+     * {@link #reset()}.
+     */
+    private void complete(Session session) throws Exception {
+        ReceivedMessage message;
+        switch (session.kind) {
+            case Session.LEGACY: message = session.legacy().open(); break;
+            case Session.FOUNTAIN: message = session.fountain().open(); break;
+            default: message = session.parts().open();
+        }
+        Log.i(TAG, "*** FINISH " + session.transfer.getKey() + " ***");
+        forget(session.transfer);
+        session.transfer = null;
+        handler.post(() -> listener.onMessage(message));
+    }
+
+    /**
+     * Posts a snapshot of the progress of the transfers if it changed since the last one.
+     */
+    private void publish() {
+        List<Progress> list = new ArrayList<>(sessions.size());
+        for (Session session : sessions) {
+            if (session.isDone()) continue;
+            switch (session.kind) {
+                case Session.LEGACY: {
+                    LegacyReassembly legacy = session.legacy();
+                    int waitIndex = legacy.firstMissing() + 1;
+                    list.add(new Progress(String.format("%s получено %s из %s жду %s", displayName(legacy), legacy.getReceivedCount(), legacy.getPartCount(), waitIndex),
+                            legacy.getReceivedCount(), legacy.getPartCount()));
+                    break;
+                }
+                case Session.FOUNTAIN: {
+                    FountainDecoder fountain = session.fountain();
+                    list.add(new Progress(String.format("получено %s из %s", fountain.getDecodedCount(), fountain.getSymbolCount()),
+                            fountain.getDecodedCount(), fountain.getSymbolCount()));
+                    break;
+                }
+                default: {
+                    PartDecoder parts = session.parts();
+                    list.add(new Progress(String.format("получено %s из %s", parts.getReceivedCount(), parts.getPartCount()),
+                            parts.getReceivedCount(), parts.getPartCount()));
+                }
+            }
+        }
+        Progress[] progress = list.toArray(new Progress[0]);
+        if (same(progress, published)) return;
+        published = progress;
+        final List<Progress> snapshot = Collections.unmodifiableList(Arrays.asList(progress));
+        handler.post(() -> listener.onProgress(snapshot));
+    }
+
+    private static String displayName(LegacyReassembly legacy) {
+        try {
+            return new String(legacy.getName().getBytes("ISO-8859-15"), StandardCharsets.UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            Log.e(TAG, "UnsupportedEncodingException", e);
+            return "-";
+        }
+    }
+
+    private static boolean same(Progress[] a, Progress[] b) {
+        if (b == null || a.length != b.length) return false;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i].received != b[i].received || a[i].total != b[i].total || !a[i].text.equals(b[i].text)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Transfer being received, told by its kind and id: the transfer id, or the part count for
+     * the first protocol version whose data parts carry nothing else.  A finished session keeps
+     * no transfer.
+     */
+    private static class Session {
+        static final int LEGACY = 0;
+        static final int FOUNTAIN = 1;
+        static final int PARTS = 2;
+
+        final int kind;
+        final int id;
+        ResumableTransfer transfer;
+        // batch the transfer was last seen in
+        long seen;
+
+        Session(int kind, int id) {
+            this.kind = kind;
+            this.id = id;
+        }
+
+        boolean isDone() {
+            return transfer == null;
+        }
+
+        LegacyReassembly legacy() {
+            return (LegacyReassembly) transfer;
+        }
+
+        FountainDecoder fountain() {
+            return (FountainDecoder) transfer;
+        }
+
+        PartDecoder parts() {
+            return (PartDecoder) transfer;
+        }
+    }
+}
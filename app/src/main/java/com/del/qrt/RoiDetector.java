@@ -0,0 +1,202 @@
+package com.del.qrt;
+
+import android.graphics.ImageFormat;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+import com.google.android.gms.vision.barcode.Barcode;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Detects the codes in the part of the frame where they were last seen.  Once codes are found,
+ * the following frames are cropped around them, with a margin, before detection; the whole
+ * frame is searched again after a frame without codes and every few frames, so codes that
+ * moved or were added are found.  The corners of the codes are put back into the coordinates
+ * of the whole frame, the trackers and the overlay do not see the cropping.
+ * <p/>
+ * Detectors sharing a {@link Region}, like those of a detector pool, share the region found.
+ */
+class RoiDetector extends Detector<Barcode> {
+
+    private final Detector<Barcode> delegate;
+    private final Region region;
+    // NV21 of the cropped frame, the chroma is neutral: only the luma is read
+    private byte[] crop = new byte[0];
+
+    RoiDetector(Detector<Barcode> delegate, Region region) {
+        this.delegate = delegate;
+        this.region = region;
+    }
+
+    @Override
+    public SparseArray<Barcode> detect(Frame frame) {
+        Frame.Metadata metadata = frame.getMetadata();
+        int width = metadata.getWidth();
+        int height = metadata.getHeight();
+        int rotation = metadata.getRotation();
+        Rect roi = region.next(width, height);
+        if (roi == null) {
+            SparseArray<Barcode> barcodes = delegate.detect(frame);
+            region.found(bounds(barcodes, 0, 0, width, height, width, height, rotation));
+            return barcodes;
+        }
+        SparseArray<Barcode> barcodes = delegate.detect(new Frame.Builder()
+                .setImageData(crop(frame.getGrayscaleImageData(), width, roi), roi.width(), roi.height(), ImageFormat.NV21)
+                .setId(metadata.getId())
+                .setTimestampMillis(metadata.getTimestampMillis())
+                .setRotation(rotation)
+                .build());
+        region.found(bounds(barcodes, roi.left, roi.top, roi.width(), roi.height(), width, height, rotation));
+        return barcodes;
+    }
+
+    @Override
+    public boolean isOperational() {
+        return delegate.isOperational();
+    }
+
+    @Override
+    public void release() {
+        delegate.release();
+        super.release();
+    }
+
+    private ByteBuffer crop(ByteBuffer frame, int width, Rect roi) {
+        int size = roi.width() * roi.height();
+        int length = size + 2 * ((roi.width() + 1) / 2) * ((roi.height() + 1) / 2);
+        if (crop.length != length) {
+            crop = new byte[length];
+            Arrays.fill(crop, size, length, (byte) 128);
+        }
+        byte[] luma = frame.array();
+        int offset = frame.arrayOffset();
+        for (int y = 0; y < roi.height(); y++) {
+            System.arraycopy(luma, offset + (roi.top + y) * width + roi.left, crop, y * roi.width(), roi.width());
+        }
+        return ByteBuffer.wrap(crop);
+    }
+
+    /**
+     * Moves the corners of the codes found in a crop into the whole frame and returns the
+     * bounds of all of them on the sensor, null if there are none.  The detector reports the
+     * corners upright, turned by the rotation of the frame, while the crop is on the sensor.
+     */
+    private static Rect bounds(SparseArray<Barcode> barcodes, int left, int top, int cropWidth, int cropHeight,
+                               int width, int height, int rotation) {
+        if (barcodes == null || barcodes.size() == 0) return null;
+        Rect bounds = null;
+        Point sensor = new Point();
+        for (int i = 0; i < barcodes.size(); i++) {
+            Point[] corners = barcodes.valueAt(i).cornerPoints;
+            if (corners == null) continue;
+            for (Point corner : corners) {
+                toSensor(corner, cropWidth, cropHeight, rotation, sensor);
+                sensor.offset(left, top);
+                if (bounds == null) {
+                    bounds = new Rect(sensor.x, sensor.y, sensor.x, sensor.y);
+                } else {
+                    bounds.union(sensor.x, sensor.y);
+                }
+                toUpright(sensor, width, height, rotation, corner);
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Point of an upright image on the sensor image of the given size.
+     */
+    private static void toSensor(Point upright, int width, int height, int rotation, Point out) {
+        int u = upright.x;
+        int v = upright.y;
+        switch (rotation) {
+            case Frame.ROTATION_90:
+                out.set(v, height - 1 - u);
+                break;
+            case Frame.ROTATION_180:
+                out.set(width - 1 - u, height - 1 - v);
+                break;
+            case Frame.ROTATION_270:
+                out.set(width - 1 - v, u);
+                break;
+            default:
+                out.set(u, v);
+        }
+    }
+
+    /**
+     * Point of the sensor image of the given size on the upright image.
+     */
+    private static void toUpright(Point sensor, int width, int height, int rotation, Point out) {
+        int x = sensor.x;
+        int y = sensor.y;
+        switch (rotation) {
+            case Frame.ROTATION_90:
+                out.set(height - 1 - y, x);
+                break;
+            case Frame.ROTATION_180:
+                out.set(width - 1 - x, height - 1 - y);
+                break;
+            case Frame.ROTATION_270:
+                out.set(y, width - 1 - x);
+                break;
+            default:
+                out.set(x, y);
+        }
+    }
+
+    /**
+     * Where the codes were last seen on the sensor, and when the whole frame is searched.
+     */
+    static class Region {
+
+        // the whole frame is searched at least every that many frames
+        static final int FULL_EVERY = 10;
+        // room around the codes, in parts of their size, for the hand to shake
+        static final float MARGIN = 0.5f;
+        // a crop larger than that part of the frame is not worth it
+        static final float MAX_CROP = 0.6f;
+
+        private Rect found;
+        private int cropped;
+
+        /**
+         * Part of the frame to detect next, null for the whole frame.
+         */
+        synchronized Rect next(int width, int height) {
+            if (found == null || cropped >= FULL_EVERY - 1) {
+                cropped = 0;
+                return null;
+            }
+            int marginX = Math.round(found.width() * MARGIN);
+            int marginY = Math.round(found.height() * MARGIN);
+            // even bounds keep the crop in whole chroma pixels
+            Rect roi = new Rect(
+                    Math.max(0, found.left - marginX) & ~1,
+                    Math.max(0, found.top - marginY) & ~1,
+                    Math.min(width, found.right + marginX) & ~1,
+                    Math.min(height, found.bottom + marginY) & ~1);
+            if (roi.width() <= 0 || roi.height() <= 0
+                    || (long) roi.width() * roi.height() > MAX_CROP * width * height) {
+                cropped = 0;
+                return null;
+            }
+            cropped++;
+            return roi;
+        }
+
+        /**
+         * Records the bounds of the codes of a frame.
+         *
+         * @param bounds null if no code was found, then the next frame is searched whole
+         */
+        synchronized void found(Rect bounds) {
+            found = bounds;
+        }
+    }
+}
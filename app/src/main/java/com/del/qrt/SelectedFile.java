@@ -0,0 +1,191 @@
+package com.del.qrt;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * File picked for sending, read without ever holding it on the heap.  A provider that hands out
+ * a seekable descriptor gets the file mapped into memory; otherwise the file is spooled to a
+ * temporary file that is mapped, so the first frame waits for the whole file to be read.
+ */
+public class SelectedFile {
+
+    private static final String TAG = "QR-transfer-file";
+    private static final int BLOCK_SIZE = 16 * 1024;
+
+    /**
+     * Tells a long copy to stop, checked between blocks.
+     */
+    public interface Cancel {
+        boolean isCancelled();
+    }
+
+    private final Context ctx;
+    private final long size;
+    private final MappedByteBuffer map;
+
+    private SelectedFile(Context ctx, long size, MappedByteBuffer map) {
+        this.ctx = ctx;
+        this.size = size;
+        this.map = map;
+    }
+
+    /**
+     * Opens the file, on a background thread: a file that cannot be mapped is read whole.
+     *
+     * @throws IOException also when cancelled
+     */
+    public static SelectedFile open(Context ctx, Uri uri, Cancel cancel) throws IOException {
+        ContentResolver resolver = ctx.getContentResolver();
+        try (ParcelFileDescriptor pfd = resolver.openFileDescriptor(uri, "r")) {
+            if (pfd != null && pfd.getStatSize() >= 0) {
+                // the mapping stays valid when the descriptor is closed
+                try {
+                    FileChannel channel = new FileInputStream(pfd.getFileDescriptor()).getChannel();
+                    return new SelectedFile(ctx, pfd.getStatSize(),
+                            channel.map(FileChannel.MapMode.READ_ONLY, 0, pfd.getStatSize()));
+                } catch (IOException e) {
+                    Log.w(TAG, "Cannot map " + uri + ", spooling it", e);
+                }
+            }
+        } catch (IOException | SecurityException e) {
+            Log.w(TAG, "No file descriptor for " + uri, e);
+        }
+        return spool(ctx, uri, cancel);
+    }
+
+    private static SelectedFile spool(Context ctx, Uri uri, Cancel cancel) throws IOException {
+        File file = File.createTempFile("send-", ".tmp", ctx.getCacheDir());
+        try {
+            InputStream in = ctx.getContentResolver().openInputStream(uri);
+            if (in == null) throw new IOException("Не удалось открыть файл");
+            try (FileOutputStream out = new FileOutputStream(file)) {
+                copy(in, out, cancel);
+            } finally {
+                Utils.safeClose(in);
+            }
+            return mapped(ctx, file);
+        } finally {
+            // the mapping keeps the data
+            file.delete();
+        }
+    }
+
+    /**
+     * The file zipped into a temporary file at the given deflate level, see
+     * {@link com.del.qrt.transfer.Compression}.
+     *
+     * @param entryName name of the single entry of the archive
+     * @throws IOException also when cancelled
+     */
+    public SelectedFile deflate(String entryName, int level, Cancel cancel) throws IOException {
+        File file = File.createTempFile("send-", ".zip", ctx.getCacheDir());
+        try {
+            try (InputStream in = openStream();
+                 ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file), BLOCK_SIZE))) {
+                zip.setLevel(level);
+                ZipEntry entry = new ZipEntry(entryName);
+                // a fixed time keeps the archive, and so the transfer id, the same on every send
+                entry.setTime(0);
+                zip.putNextEntry(entry);
+                copy(in, zip, cancel);
+                zip.closeEntry();
+            }
+            return mapped(ctx, file);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Reads the beginning of the file.
+     *
+     * @return number of bytes read, less than the buffer only for a shorter file
+     */
+    public int readSample(byte[] buffer) throws IOException {
+        InputStream in = openStream();
+        try {
+            return Utils.readFully(in, buffer, buffer.length);
+        } finally {
+            Utils.safeClose(in);
+        }
+    }
+
+    private static SelectedFile mapped(Context ctx, File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long size = raf.length();
+            return new SelectedFile(ctx, size, raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size));
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out, Cancel cancel) throws IOException {
+        byte[] buffer = new byte[BLOCK_SIZE];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            if (cancel != null && cancel.isCancelled()) throw new IOException("Передача отменена");
+            out.write(buffer, 0, n);
+        }
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * The whole file mapped into memory.
+     */
+    public ByteBuffer getMap() {
+        return map.duplicate();
+    }
+
+    /**
+     * Stream of the whole file, from the mapping.
+     */
+    public InputStream openStream() {
+        return new BufferInputStream(map.duplicate());
+    }
+
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!buffer.hasRemaining()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
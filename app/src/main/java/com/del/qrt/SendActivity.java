@@ -1,6 +1,7 @@
 package com.del.qrt;
 
 import android.Manifest;
+import android.app.AlertDialog;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
@@ -10,7 +11,10 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.MotionEvent;
+import android.view.View;
 import android.widget.Button;
 import android.widget.ImageButton;
 import android.widget.ImageView;
@@ -25,32 +29,73 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
-import com.del.qr.Message;
-import com.del.qr.MessageEncoder;
+import com.del.qrt.transfer.BodyWriter;
+import com.del.qrt.transfer.Compression;
+import com.del.qrt.transfer.FountainEncoder;
+import com.del.qrt.transfer.PartEncoder;
+import com.del.qrt.transfer.PayloadCodec;
+import com.del.qrt.transfer.QrFormat;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class SendActivity extends AppCompatActivity {
 
     private static final int RC_READ_FILE = 10;
+    private static final int MAX_SHARDS = 4;
+    // time a frame is shown in the slideshow, ms
+    private static final int FRAME_INTERVAL = 500;
+    // time before asking again for a frame still being rendered, ms
+    private static final int RENDER_RETRY = 20;
+    private static final int WORKERS = Math.max(1, Runtime.getRuntime().availableProcessors());
 
     private ImageView imageView;
     private TextView imageIndex;
     private RelativeLayout rootView;
-    private final List<Bitmap> images = new ArrayList<>();
-    private int currentImageIndex = 0;
-    private final Executor executor = Executors.newSingleThreadExecutor();
+    private View bottomLayout;
+    private FrameRing frames;
+    private long position = 0;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final ExecutorService workers = Executors.newFixedThreadPool(WORKERS);
+    private final ExecutorService reader = Executors.newSingleThreadExecutor();
     private final Handler handler = new Handler(Looper.getMainLooper());
     private final AtomicBoolean isPaused = new AtomicBoolean();
     private Runnable showNextImage;
+    private final Runnable renderRetry = () -> {
+        if (frames != null) renderImage();
+    };
     private ImageButton btnPlay;
     private boolean isHeld = false;
     private boolean isHoldOn = false;
+    private Uri fileUri;
+    private String fileName;
+    private boolean fountainMode = false;
+    // null sends frames of the first protocol version, classic mode only
+    private PayloadCodec codec = PayloadCodec.BASE45;
+    private int density = R.id.density_normal;
+    private boolean multiCode = false;
+    private boolean colorCode = false;
+    // share of the frames shown when several senders show the same file
+    private int shard = 0;
+    private int shards = 1;
+    // bumped on every new file or mode, lets the reader drop a stale file
+    private volatile int generation;
+    // bumped on every file picked, even the same one again: it may have changed
+    private volatile int picked;
+    // body of the last file sent, reused when only the mode changes; reader thread only
+    private int bodyPicked = -1;
+    private SelectedFile body;
+    private int bodyLevel;
+    private String progress = "";
+
+    private interface BodySender {
+        void send(SelectedFile file, byte metaInfo) throws Exception;
+    }
 
     final private ActivityResultLauncher<String[]> requestMultiPermissionLauncher =
             registerForActivityResult(
@@ -130,6 +175,7 @@ public class SendActivity extends AppCompatActivity {
         rootView = findViewById(R.id.sendRootLayout);
         imageView = findViewById(R.id.qrImageView);
         imageIndex = findViewById(R.id.imageIndex);
+        bottomLayout = findViewById(R.id.buttomLayout);
 
         Button btnPrevious = findViewById(R.id.btnPrevious);
         btnPlay = findViewById(R.id.btnPlay);
@@ -140,20 +186,31 @@ public class SendActivity extends AppCompatActivity {
         showNextImage = new Runnable() {
             @Override
             public void run() {
-                if (!images.isEmpty()) {
-                    renderImage();
+                if (frames != null) {
+                    if (position >= frames.available()) {
+                        // the file is still being read, wait for the frame
+                        handler.postDelayed(this, 100);
+                        return;
+                    }
+                    if (!renderImage()) {
+                        // the frame is being rendered, the slideshow waits for it
+                        handler.removeCallbacks(renderRetry);
+                        handler.postDelayed(this, RENDER_RETRY);
+                        return;
+                    }
                     if (!isPaused.get()) {
-                        currentImageIndex = (currentImageIndex + 1) % images.size();
-                        handler.postDelayed(this, 500);
+                        position++;
+                        handler.postDelayed(this, FRAME_INTERVAL);
                     }
                 }
             }
         };
 
         btnPlay.setOnClickListener(v -> {
-            if (images.isEmpty()) return;
+            if (frames == null) return;
             if (isPaused.get()) {
                 onBtnPlay();
+                handler.removeCallbacks(showNextImage);
                 handler.post(showNextImage);
             } else {
                 onBtnPause();
@@ -163,11 +220,11 @@ public class SendActivity extends AppCompatActivity {
         Runnable heldRunnablePrev = new Runnable() {
             @Override
             public void run() {
-                if (images.isEmpty()) return;
+                if (frames == null) return;
                 if (isHeld) {
                     isHoldOn = true;
                     onBtnPause();
-                    currentImageIndex = (currentImageIndex - 1 + images.size()) % images.size();
+                    previousPosition();
                     renderImage();
                     handler.postDelayed(this, 100);
                 }
@@ -184,12 +241,12 @@ public class SendActivity extends AppCompatActivity {
 
                 case MotionEvent.ACTION_UP:
                 case MotionEvent.ACTION_CANCEL:
-                    if (images.isEmpty()) return false;
+                    if (frames == null) return false;
                     isHeld = false;
                     handler.removeCallbacks(heldRunnablePrev);
                     if (!isHoldOn) {
                         onBtnPause();
-                        currentImageIndex = (currentImageIndex - 1 + images.size()) % images.size();
+                        previousPosition();
                         renderImage();
                     }
                     return true;
@@ -200,11 +257,11 @@ public class SendActivity extends AppCompatActivity {
         Runnable heldRunnableNext = new Runnable() {
             @Override
             public void run() {
-                if (images.isEmpty()) return;
+                if (frames == null) return;
                 if (isHeld) {
                     isHoldOn = true;
                     onBtnPause();
-                    currentImageIndex = (currentImageIndex + 1) % images.size();
+                    nextPosition();
                     renderImage();
                     handler.postDelayed(this, 100);
                 }
@@ -221,12 +278,12 @@ public class SendActivity extends AppCompatActivity {
 
                 case MotionEvent.ACTION_UP:
                 case MotionEvent.ACTION_CANCEL:
-                    if (images.isEmpty()) return false;
+                    if (frames == null) return false;
                     isHeld = false;
                     handler.removeCallbacks(heldRunnableNext);
                     if (!isHoldOn) {
                         onBtnPause();
-                        currentImageIndex = (currentImageIndex + 1) % images.size();
+                        nextPosition();
                         renderImage();
                     }
                     return true;
@@ -262,14 +319,157 @@ public class SendActivity extends AppCompatActivity {
         btnPlay.setImageResource(R.drawable.ic_baseline_pause_24);
     }
 
-    private void renderImage() {
-        imageView.setImageBitmap(images.get(currentImageIndex));
-        imageIndex.setText(String.format("%s:%s", currentImageIndex + 1, images.size()));
+    private void previousPosition() {
+        if (position > 0) {
+            position--;
+        } else if (frames.available() >= frames.size()) {
+            position = frames.size() - 1;
+        }
+    }
+
+    private void nextPosition() {
+        if (position + 1 < frames.available()) position++;
+    }
+
+    /**
+     * Shows the frame at the current position if the ring has it rendered, otherwise keeps the
+     * frame on screen and tries again shortly.
+     *
+     * @return false if the frame is not shown yet
+     */
+    private boolean renderImage() {
+        handler.removeCallbacks(renderRetry);
+        boolean shown = true;
+        try {
+            Bitmap bitmap = frames.acquire(position);
+            if (bitmap != null) {
+                imageView.setImageBitmap(bitmap);
+                // the ring reuses bitmaps, so the view may get the same instance with new content
+                imageView.invalidate();
+            } else {
+                shown = false;
+                handler.postDelayed(renderRetry, RENDER_RETRY);
+            }
+        } catch (Exception e) {
+            Utils.showError(rootView, e.getMessage(), e);
+        }
+        showIndex();
+        return shown;
+    }
+
+    private void showIndex() {
+        String share = shards > 1 ? String.format(" [%s/%s]", shard + 1, shards) : "";
+        imageIndex.setText(String.format("%s:%s%s%s", position % frames.size() + 1, frames.size(), share, progress));
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_send, menu);
+        menu.findItem(fountainMode ? R.id.mode_fountain : R.id.mode_classic).setChecked(true);
+        menu.findItem(R.id.codec_legacy).setEnabled(!fountainMode);
+        int codecItem = codec == PayloadCodec.BINARY ? R.id.codec_binary
+                : codec == PayloadCodec.BASE45 ? R.id.codec_base45 : R.id.codec_legacy;
+        menu.findItem(codecItem).setChecked(true);
+        menu.findItem(density).setChecked(true);
+        menu.findItem(R.id.multi_code).setChecked(multiCode);
+        menu.findItem(R.id.color_code).setChecked(colorCode);
+        menu.findItem(R.id.shard).setChecked(shards > 1);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        int id = item.getItemId();
+        if (id == R.id.mode_classic || id == R.id.mode_fountain) {
+            item.setChecked(true);
+            boolean fountain = id == R.id.mode_fountain;
+            if (fountain != fountainMode) {
+                fountainMode = fountain;
+                // the first protocol version has no rateless mode
+                if (fountain && codec == null) codec = PayloadCodec.BASE45;
+                invalidateOptionsMenu();
+                if (fileUri != null) prepareFrames();
+            }
+            return true;
+        }
+        if (id == R.id.multi_code) {
+            multiCode = !multiCode;
+            item.setChecked(multiCode);
+            if (fileUri != null) prepareFrames();
+            return true;
+        }
+        if (id == R.id.color_code) {
+            colorCode = !colorCode;
+            item.setChecked(colorCode);
+            if (fileUri != null) prepareFrames();
+            return true;
+        }
+        if (id == R.id.shard) {
+            chooseShard();
+            return true;
+        }
+        if (id == R.id.density_robust || id == R.id.density_normal || id == R.id.density_dense) {
+            item.setChecked(true);
+            if (id != density) {
+                density = id;
+                if (fileUri != null) prepareFrames();
+            }
+            return true;
+        }
+        if (id == R.id.codec_base45 || id == R.id.codec_binary || id == R.id.codec_legacy) {
+            item.setChecked(true);
+            PayloadCodec selected = id == R.id.codec_base45 ? PayloadCodec.BASE45
+                    : id == R.id.codec_binary ? PayloadCodec.BINARY : null;
+            if (selected != codec) {
+                codec = selected;
+                if (fileUri != null) prepareFrames();
+            }
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /**
+     * Asks which share of the frames to show: the whole file or share k of n.  Every sender must
+     * use the same mode, codec and density, so the transfers get the same id.
+     */
+    private void chooseShard() {
+        List<String> items = new ArrayList<>();
+        List<int[]> choices = new ArrayList<>();
+        items.add(getString(R.string.shard_all));
+        choices.add(new int[]{0, 1});
+        int checked = 0;
+        for (int n = 2; n <= MAX_SHARDS; n++) {
+            for (int k = 0; k < n; k++) {
+                if (n == shards && k == shard) checked = items.size();
+                items.add(String.format(getString(R.string.shard_part), k + 1, n));
+                choices.add(new int[]{k, n});
+            }
+        }
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.shard)
+                .setSingleChoiceItems(items.toArray(new String[0]), checked, (dialog, which) -> {
+                    dialog.dismiss();
+                    int[] choice = choices.get(which);
+                    if (choice[0] == shard && choice[1] == shards) return;
+                    shard = choice[0];
+                    shards = choice[1];
+                    invalidateOptionsMenu();
+                    if (fileUri != null) prepareFrames();
+                }).show();
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        // stops the reader
+        generation++;
+        if (frames != null) frames.release();
+        // nothing may hand work to the executors once they are shut down
+        handler.removeCallbacksAndMessages(null);
+        reader.shutdownNow();
+        executor.shutdownNow();
+        workers.shutdownNow();
     }
 
     @Override
@@ -283,32 +483,163 @@ public class SendActivity extends AppCompatActivity {
         super.onActivityResult(requestCode, resultCode, data);
         if (requestCode == RC_READ_FILE && resultCode == RESULT_OK && data != null) {
             try {
-                images.clear();
-                Uri uri = data.getData();
-                byte[] bytes = Utils.readFile(this, uri);
-                String fName = Utils.getFileName(this, uri);
-                Log.i(getClass().getName(), String.format("Sending file '%s'", fName));
-                Message m = new Message(fName, bytes);
-                executor.execute(() -> {
-                    try {
-                        AtomicInteger index = new AtomicInteger(1);
-                        List<String> list = MessageEncoder.code(m);
-                        for (String s : list) {
-                            images.add(Utils.getQRCode(s));
-                            handler.post(() -> {
-                                imageIndex.setText(String.format("%s/%s", index.getAndIncrement(), list.size()));
-                            });
-                        }
-                        isPaused.set(true);
-                        currentImageIndex = 0;
-                        handler.post(showNextImage);
-                    } catch (Exception e) {
-                        Utils.showError(rootView, e.getMessage(), e);
-                    }
-                });
+                fileUri = data.getData();
+                fileName = Utils.getFileName(this, fileUri);
+                picked++;
+                Log.i(getClass().getName(), String.format("Sending file '%s'", fileName));
+                prepareFrames();
             } catch (Exception e) {
                 Utils.showError(rootView, e.getMessage(), e);
             }
         }
     }
+
+    /**
+     * Starts showing the frames as soon as the reader thread has the body checksummed; the codes
+     * are encoded in background while they are shown, the slideshow waits whenever it gets ahead
+     * of them.  A file worth compressing is shown stored while it is compressed.
+     */
+    private void prepareFrames() {
+        if (frames != null) {
+            frames.release();
+            frames = null;
+        }
+        onBtnPause();
+        handler.removeCallbacks(showNextImage);
+        final int current = ++generation;
+        final int pick = picked;
+        final Uri uri = fileUri;
+        final String name = fileName;
+        final boolean useFountain = fountainMode;
+        final PayloadCodec useCodec = codec;
+        final FrameGrid grid = grid(useCodec != null ? useCodec : PayloadCodec.BASE45);
+        final int channels = colorCode ? QrRenderer.CHANNELS : 1;
+        final QrFormat format = grid.getFormat();
+        final int useShard = shard;
+        final int useShards = shards;
+        final BodySender sender = (file, metaInfo) -> {
+            long size = file.getSize();
+            if (useFountain) {
+                FountainEncoder encoder = new FountainEncoder(name, metaInfo, size, useCodec, format);
+                show(FrameSource.shard(FrameSource.of(encoder), 0, useShard, useShards), current, grid, channels);
+                feed(file, encoder);
+            } else if (useCodec != null) {
+                // the meta frame is shown by every share
+                PartEncoder encoder = new PartEncoder(name, metaInfo, size, useCodec, format);
+                show(FrameSource.shard(FrameSource.of(encoder), 1, useShard, useShards), current, grid, channels);
+                feed(file, encoder);
+            } else {
+                ClassicFrameSource source = new ClassicFrameSource(name, metaInfo, file.getMap());
+                show(FrameSource.shard(source, 1, useShard, useShards), current, null, channels);
+            }
+        };
+        reader.execute(() -> {
+            try {
+                SelectedFile file = body(pick, uri, name, current, sender);
+                sender.send(file, bodyLevel != Compression.STORE ? Compression.ZIP_META : 0);
+            } catch (Exception e) {
+                if (current == generation) handler.post(() -> Utils.showError(rootView, e.getMessage(), e));
+            }
+        });
+    }
+
+    /**
+     * The body to send, compressed if worth it, on the reader thread; the result is kept for the
+     * next mode of the same file.  The compressed frames carry the length and the checksum of the
+     * compressed body, so they wait for the whole file to be compressed: meanwhile the file is
+     * sent stored, a receiver that gets it complete by then has it sooner.
+     *
+     * @param meanwhile sends the stored file while it is compressed
+     */
+    private SelectedFile body(int pick, Uri uri, String name, int current, BodySender meanwhile) throws Exception {
+        if (pick == bodyPicked) return body;
+        body = null;
+        bodyPicked = -1;
+        SelectedFile.Cancel cancel = () -> current != generation;
+        SelectedFile selected = SelectedFile.open(this, uri, cancel);
+        byte[] sample = new byte[(int) Math.min(Compression.SAMPLE_SIZE, selected.getSize())];
+        int level = Compression.choose(sample, selected.readSample(sample));
+        if (level != Compression.STORE) {
+            meanwhile.send(selected, (byte) 0);
+            long stored = selected.getSize();
+            selected = selected.deflate(name, level, cancel);
+            Log.i(getClass().getName(), String.format("Deflated %s at level %d: %d -> %d bytes", name, level, stored, selected.getSize()));
+        }
+        body = selected;
+        bodyLevel = level;
+        bodyPicked = pick;
+        return selected;
+    }
+
+    /**
+     * Shows the frames of the source and encodes the whole loop in background on all the cores.
+     * With several channels every code of the picture is a colour composite of that many frames.
+     * Frames already shown for the same file, the stored ones, are replaced and the slideshow
+     * goes on from the first new frame.
+     */
+    private void show(FrameSource source, int current, FrameGrid grid, int channels) throws IOException {
+        FrameStore store = new FrameStore(source, getCacheDir());
+        FrameRing ring = grid != null
+                ? new FrameRing(store, workers, grid.getCell(), grid.getColumns(), grid.getRows(), channels)
+                : new FrameRing(store, workers, Utils.QR_SIZE, 1, 1, channels);
+        handler.post(() -> {
+            if (current != generation) {
+                ring.release();
+                return;
+            }
+            boolean replaced = frames != null;
+            if (replaced) frames.release();
+            frames = ring;
+            position = 0;
+            progress = "";
+            if (!replaced) isPaused.set(true);
+            handler.removeCallbacks(showNextImage);
+            showNextImage.run();
+        });
+        executor.execute(() -> {
+            try {
+                store.prepare(workers, WORKERS, (prepared, total, partsPerSecond) -> handler.post(() -> {
+                    if (current != generation || frames != ring) return;
+                    progress = prepared < total
+                            ? String.format(" (подготовлено %s из %s, %.1f кадр/с)", prepared, total, partsPerSecond)
+                            : "";
+                    if (frames != null) showIndex();
+                }));
+            } catch (InterruptedException e) {
+                Log.w(getClass().getName(), "Frame preparation interrupted", e);
+            }
+        });
+    }
+
+    /**
+     * Codes shown at once and their format for the density preset: the largest version the
+     * receiver camera resolves with the preset number of camera pixels per module.
+     */
+    private FrameGrid grid(PayloadCodec codec) {
+        float pixelsPerModule = density == R.id.density_robust ? 6 : density == R.id.density_dense ? 3 : 4;
+        ErrorCorrectionLevel level = density == R.id.density_robust ? ErrorCorrectionLevel.M : ErrorCorrectionLevel.L;
+        if (multiCode) {
+            int width = rootView.getWidth();
+            int height = imageView.getTop() > 0
+                    ? bottomLayout.getTop() - imageView.getTop()
+                    : rootView.getHeight() - bottomLayout.getHeight();
+            return FrameGrid.choose(width, height, MainActivity.PREVIEW_WIDTH, MainActivity.PREVIEW_HEIGHT,
+                    pixelsPerModule, level, codec);
+        }
+        QrFormat format = QrFormat.forCamera(MainActivity.PREVIEW_WIDTH, MainActivity.PREVIEW_HEIGHT,
+                pixelsPerModule, level);
+        return FrameGrid.single(format, Utils.QR_SIZE);
+    }
+
+    /**
+     * Hands the mapped file to the encoder, which keeps it as is.
+     */
+    private void feed(SelectedFile file, BodyWriter encoder) throws IOException {
+        try {
+            encoder.write(file.getMap());
+        } catch (IOException e) {
+            encoder.fail(e);
+            throw e;
+        }
+    }
 }
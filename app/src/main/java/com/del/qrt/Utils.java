@@ -10,23 +10,13 @@ import android.util.Log;
 import android.view.View;
 
 import com.google.android.material.snackbar.Snackbar;
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.EncodeHintType;
 import com.google.zxing.WriterException;
 import com.google.zxing.common.BitMatrix;
-import com.google.zxing.qrcode.QRCodeWriter;
 import com.journeyapps.barcodescanner.BarcodeEncoder;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
-import java.util.HashMap;
-import java.util.Map;
 
 public final class Utils {
 
@@ -56,44 +46,27 @@ public final class Utils {
         return result;
     }
 
+    public static final int QR_SIZE = 400;
+
     public static Bitmap getQRCode(String text) throws WriterException {
-        int qrcodeWidth = 400;
-        int qrcodeHeight = 400;
-        Map<EncodeHintType, String> hints = new HashMap<>();
-        hints.put(EncodeHintType.CHARACTER_SET, "UTF-8");
-        hints.put(EncodeHintType.ERROR_CORRECTION, "L");
-        BitMatrix bitMatrix = new QRCodeWriter().encode(text, BarcodeFormat.QR_CODE, qrcodeWidth, qrcodeHeight, hints);
+        BitMatrix bitMatrix = QrRenderer.encode(text, QR_SIZE, QR_SIZE);
         BarcodeEncoder barcodeEncoder = new BarcodeEncoder();
         return barcodeEncoder.createBitmap(bitMatrix);
     }
 
-    public static byte[] readFile(Context ctx, Uri uri) throws IOException {
-        InputStream is = ctx.getContentResolver().openInputStream(uri);
-        ReadableByteChannel src = Channels.newChannel(is);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        WritableByteChannel dest = Channels.newChannel(out);
-        ByteBuffer buffer = ByteBuffer.allocateDirect(16 * 1024);
-        transfer(src, dest, buffer);
-        return out.toByteArray();
-    }
-
-    private static void transfer(ReadableByteChannel src,
-                                 WritableByteChannel dest,
-                                 ByteBuffer buffer) throws IOException {
-        try {
-            while (src.read(buffer) != -1) {
-                buffer.flip();
-                dest.write(buffer);
-                buffer.compact();
-            }
-            buffer.flip();
-            while (buffer.hasRemaining()) {
-                dest.write(buffer);
-            }
-        } finally {
-            safeClose(dest);
-            safeClose(src);
+    /**
+     * Reads up to {@code length} bytes, stopping early only at the end of the stream.
+     *
+     * @return number of bytes read
+     */
+    public static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int n = in.read(buffer, total, length - total);
+            if (n < 0) break;
+            total += n;
         }
+        return total;
     }
 
     public static void safeClose(Closeable closeable) {
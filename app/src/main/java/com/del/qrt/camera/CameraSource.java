@@ -31,6 +31,7 @@ import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.WindowManager;
 
+import androidx.annotation.IntDef;
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresPermission;
 import androidx.annotation.StringDef;
@@ -48,6 +49,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
 
 // Note: This requires Google Play Services 8.1 or higher, due to using indirect byte buffers for
 // storing images.
@@ -78,6 +80,12 @@ public class CameraSource {
     @SuppressLint("InlinedApi")
     public static final int CAMERA_FACING_FRONT = CameraInfo.CAMERA_FACING_FRONT;
 
+    /**
+     * Preview policies: detect only the newest of the frames waiting, or every frame in turn.
+     */
+    public static final int PREVIEW_LATEST = 0;
+    public static final int PREVIEW_ALL = 1;
+
     private static final String TAG = "OpenCameraSource";
 
     /**
@@ -116,6 +124,11 @@ public class CameraSource {
     private @interface FlashMode {
     }
 
+    @IntDef({PREVIEW_LATEST, PREVIEW_ALL})
+    @Retention(RetentionPolicy.SOURCE)
+    private @interface PreviewPolicy {
+    }
+
     private Context mContext;
 
     private final Object mCameraLock = new Object();
@@ -143,6 +156,11 @@ public class CameraSource {
     private String mFocusMode = null;
     private String mFlashMode = null;
 
+    // Frames that may wait for detection, and which of them are detected
+    private int mPreviewDepth = 1;
+    private int mPreviewPolicy = PREVIEW_LATEST;
+    private boolean mFrameGate = false;
+
     // These instances need to be held onto to avoid GC of their underlying resources.  Even though
     // these aren't used outside of the method that creates them, they still must have hard
     // references maintained to them.
@@ -153,7 +171,7 @@ public class CameraSource {
      * Dedicated thread and associated runnable for calling into the detector with frames, as the
      * frames become available from the camera.
      */
-    private Thread mProcessingThread;
+    private volatile Thread mProcessingThread;
     private FrameProcessingRunnable mFrameProcessor;
 
     /**
@@ -172,6 +190,8 @@ public class CameraSource {
      */
     public static class Builder {
         private final Detector<?> mDetector;
+        private Detector<?>[] mChannelDetectors;
+        private DetectorPool<?> mPool;
         private CameraSource mCameraSource = new CameraSource();
 
         /**
@@ -243,11 +263,66 @@ public class CameraSource {
             return this;
         }
 
+        /**
+         * Separates the colour channels of every preview frame before detection, for codes
+         * composited by colour channel: the detector of the builder gets the red channel and
+         * the given detectors the green and the blue ones.  Black and white codes are still
+         * read, from every channel.  Default: off, the detector gets the frames as they are.
+         */
+        public Builder setChannelDetectors(Detector<?> green, Detector<?> blue) {
+            if (green == null || blue == null) {
+                throw new IllegalArgumentException("No detector supplied.");
+            }
+            mChannelDetectors = new Detector<?>[]{mDetector, green, blue};
+            return this;
+        }
+
+        /**
+         * Sets how many preview frames may wait while detection is busy, and whether only the
+         * newest of them is detected ({@link #PREVIEW_LATEST}) or all of them in turn
+         * ({@link #PREVIEW_ALL}).  Every waiting frame takes a preview buffer; a frame beyond the
+         * depth is given back to the camera at once and counted as dropped.  Default: one
+         * frame, the latest, a new frame replacing the waiting one.
+         */
+        public Builder setPreviewQueue(int depth, @PreviewPolicy int policy) {
+            if (depth < 1) {
+                throw new IllegalArgumentException("Invalid preview queue depth: " + depth);
+            }
+            mCameraSource.mPreviewDepth = depth;
+            mCameraSource.mPreviewPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Skips detection of the preview frames that look the same as the one before, see
+         * {@link FrameGate}; a frame is still detected every second.  For pictures that stay
+         * still for several frames, like codes shown in turn.  Default: off.
+         */
+        public Builder setFrameGate(boolean enabled) {
+            mCameraSource.mFrameGate = enabled;
+            return this;
+        }
+
+        /**
+         * Detects several frames at once, every detector on a thread of its own, and passes the
+         * detections to the processor in the order of the frames.  The detectors are only asked
+         * to {@link Detector#detect(Frame)}, their own processors are not called, and the
+         * detector of the builder may be one of them.  Not used with channel detectors.
+         * Default: off, one frame at a time on the detector of the builder.
+         */
+        public <T> Builder setDetectorPool(List<? extends Detector<T>> detectors, Detector.Processor<T> processor) {
+            if (processor == null) {
+                throw new IllegalArgumentException("No processor supplied.");
+            }
+            mPool = new DetectorPool<>(detectors, processor);
+            return this;
+        }
+
         /**
          * Creates an instance of the camera source.
          */
         public CameraSource build() {
-            mCameraSource.mFrameProcessor = mCameraSource.new FrameProcessingRunnable(mDetector);
+            mCameraSource.mFrameProcessor = mCameraSource.new FrameProcessingRunnable(mDetector, mChannelDetectors, mPool);
             return mCameraSource;
         }
     }
@@ -410,6 +485,10 @@ public class CameraSource {
                 }
                 mProcessingThread = null;
             }
+            PreviewRing ring = mFrameProcessor.getRing();
+            Log.i(TAG, "Preview frames produced: " + ring.produced() + ", processed: "
+                    + ring.processed() + ", dropped: " + ring.dropped()
+                    + ", skipped: " + mFrameProcessor.skipped());
 
             // clear the buffer to prevent oom exceptions
             mBytesToByteBuffer.clear();
@@ -438,6 +517,36 @@ public class CameraSource {
         }
     }
 
+    /**
+     * Preview frames received from the camera since it was started.
+     */
+    public long getFramesProduced() {
+        return mFrameProcessor.getRing().produced();
+    }
+
+    /**
+     * Preview frames taken for detection since the camera was started.
+     */
+    public long getFramesProcessed() {
+        return mFrameProcessor.getRing().processed();
+    }
+
+    /**
+     * Preview frames given back to the camera unread since it was started, see
+     * {@link Builder#setPreviewQueue(int, int)}.
+     */
+    public long getFramesDropped() {
+        return mFrameProcessor.getRing().dropped();
+    }
+
+    /**
+     * Preview frames taken but not detected as they did not change, see
+     * {@link Builder#setFrameGate(boolean)}.
+     */
+    public long getFramesSkipped() {
+        return mFrameProcessor.skipped();
+    }
+
     /**
      * Returns the preview size that is currently in use by the underlying camera.
      */
@@ -754,16 +863,16 @@ public class CameraSource {
 
         camera.setParameters(parameters);
 
-        // Four frame buffers are needed for working with the camera:
+        // Frame buffers needed for working with the camera, four by default:
         //
-        //   one for the frame that is currently being executed upon in doing detection
-        //   one for the next pending frame to process immediately upon completing detection
+        //   one for every frame that is currently being executed upon in doing detection
+        //   one for every pending frame waiting in the preview ring
         //   two for the frames that the camera uses to populate future preview images
         camera.setPreviewCallbackWithBuffer(new CameraPreviewCallback());
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
-        camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
+        mFrameProcessor.clearRing();
+        for (int i = mFrameProcessor.buffers(); i > 0; i--) {
+            camera.addCallbackBuffer(createPreviewBuffer(mPreviewSize));
+        }
 
         return camera;
     }
@@ -1038,25 +1147,74 @@ public class CameraSource {
      * (i.e., without unnecessary context switching or waiting on the next frame).
      * <p/>
      * While detection is running on a frame, new frames may be received from the camera.  As these
-     * frames come in, the most recent frame is held onto as pending.  As soon as detection and its
+     * frames come in, they wait in the {@link PreviewRing}.  As soon as detection and its
      * associated processing are done for the previous frame, detection on the mostly recently
-     * received frame will immediately start on the same thread.
+     * received frame, or on the oldest with {@link #PREVIEW_ALL}, will immediately start on the
+     * same thread.  The camera callback never blocks on the processing thread, it only wakes it.
+     * <p/>
+     * With a detector pool the most recent frame is handed to the first detector that is idle,
+     * and several frames are detected at once.
      */
     private class FrameProcessingRunnable implements Runnable {
         private Detector<?> mDetector;
+        // Red, green and blue channel detectors, null when the frames are detected as they are
+        private Detector<?>[] mChannelDetectors;
+        // Detects the frames as they are on several threads, null for this thread only
+        private DetectorPool<?> mPool;
+        // Skips the frames that did not change, null when every frame is detected
+        private final FrameGate mGate;
+        private final ChannelSplitter mSplitter = new ChannelSplitter();
         private long mStartTimeMillis = SystemClock.elapsedRealtime();
 
-        // This lock guards all of the member variables below.
-        private final Object mLock = new Object();
-        private boolean mActive = true;
+        private volatile boolean mActive = true;
 
-        // These pending variables hold the state associated with the new frame awaiting processing.
-        private long mPendingTimeMillis;
-        private int mPendingFrameId = 0;
-        private ByteBuffer mPendingFrameData;
+        // Frames from the camera callback, the frame ID is counted by the callback only
+        private final PreviewRing mRing;
+        private final PreviewRing.Recycler mRecycler = data -> mCamera.addCallbackBuffer(data);
+        private int mFrameId = 0;
 
-        FrameProcessingRunnable(Detector<?> detector) {
+        FrameProcessingRunnable(Detector<?> detector, Detector<?>[] channelDetectors, DetectorPool<?> pool) {
             mDetector = detector;
+            mChannelDetectors = channelDetectors;
+            mPool = pool;
+            mRing = new PreviewRing(mPreviewDepth, mPreviewPolicy == PREVIEW_LATEST);
+            mGate = mFrameGate ? new FrameGate() : null;
+        }
+
+        /**
+         * Frames the gate kept from detection.
+         */
+        long skipped() {
+            return mGate != null ? mGate.skipped() : 0;
+        }
+
+        /**
+         * Number of preview buffers the camera gets, two of them are always left to the camera.
+         */
+        int buffers() {
+            return detecting() + mRing.depth() + 2;
+        }
+
+        /**
+         * Forgets the frames of a previous camera, before the preview starts.
+         */
+        void clearRing() {
+            mRing.clear();
+        }
+
+        PreviewRing getRing() {
+            return mRing;
+        }
+
+        /**
+         * Number of frames that may be in detection at once.
+         */
+        int detecting() {
+            return usePool() ? mPool.size() : 1;
+        }
+
+        private boolean usePool() {
+            return mPool != null && mChannelDetectors == null;
         }
 
         /**
@@ -1067,51 +1225,60 @@ public class CameraSource {
         void release() {
             try {
                 assert (mProcessingThread.getState() == State.TERMINATED);
+                if (mPool != null) {
+                    mPool.release(mDetector);
+                    mPool = null;
+                }
                 mDetector.release();
                 mDetector = null;
+                if (mChannelDetectors != null) {
+                    for (int c = 1; c < mChannelDetectors.length; c++) {
+                        mChannelDetectors[c].release();
+                    }
+                    mChannelDetectors = null;
+                }
             } catch (Exception e) {
                 e.printStackTrace();
             }
         }
 
         /**
-         * Marks the runnable as active/not active.  Signals any blocked threads to continue.
+         * Marks the runnable as active/not active.  Signals the processing thread to continue.
          */
         void setActive(boolean active) {
-            synchronized (mLock) {
-                mActive = active;
-                mLock.notifyAll();
-            }
+            mActive = active;
+            wake();
+        }
+
+        private void wake() {
+            Thread thread = mProcessingThread;
+            if (thread != null) LockSupport.unpark(thread);
         }
 
         /**
-         * Sets the frame data received from the camera.  This adds the previous unused frame buffer
-         * (if present) back to the camera, and keeps a pending reference to the frame data for
-         * future use.
+         * Sets the frame data received from the camera.  The frame waits in the ring; with the
+         * latest only policy it pushes the oldest waiting frame back to the camera, otherwise a
+         * frame the ring has no room for goes straight back to the camera.
          */
         void setNextFrame(byte[] data, Camera camera) {
-            synchronized (mLock) {
-                if (mPendingFrameData != null) {
-                    camera.addCallbackBuffer(mPendingFrameData.array());
-                    mPendingFrameData = null;
-                }
-
-                if (!mBytesToByteBuffer.containsKey(data)) {
-                    Log.d(TAG,
-                            "Skipping frame.  Could not find ByteBuffer associated with the image " +
-                                    "data from the camera.");
-                    return;
-                }
-
-                // Timestamp and frame ID are maintained here, which will give downstream code some
-                // idea of the timing of frames received and when frames were dropped along the way.
-                mPendingTimeMillis = SystemClock.elapsedRealtime() - mStartTimeMillis;
-                mPendingFrameId++;
-                mPendingFrameData = mBytesToByteBuffer.get(data);
+            ByteBuffer buffer = mBytesToByteBuffer.get(data);
+            if (buffer == null) {
+                Log.d(TAG,
+                        "Skipping frame.  Could not find ByteBuffer associated with the image " +
+                                "data from the camera.");
+                return;
+            }
 
-                // Notify the processor thread if it is waiting on the next frame (see below).
-                mLock.notifyAll();
+            // Timestamp and frame ID are maintained here, which will give downstream code some
+            // idea of the timing of frames received and when frames were dropped along the way.
+            long timeMillis = SystemClock.elapsedRealtime() - mStartTimeMillis;
+            if (!mRing.offer(buffer, ++mFrameId, timeMillis, mRecycler)) {
+                camera.addCallbackBuffer(data);
+                return;
             }
+
+            // Wake the processor thread if it is waiting on the next frame (see below).
+            wake();
         }
 
         /**
@@ -1130,51 +1297,80 @@ public class CameraSource {
          */
         @Override
         public void run() {
+            try {
+                detectFrames();
+            } finally {
+                if (usePool()) {
+                    try {
+                        mPool.awaitIdle();
+                    } catch (InterruptedException e) {
+                        Log.d(TAG, "Interrupted waiting for the detector pool.", e);
+                    }
+                }
+            }
+        }
+
+        private void detectFrames() {
             Frame outputFrame;
             ByteBuffer data;
+            int frameId;
+            long timeMillis;
+            boolean pool = usePool();
 
             while (true) {
-                synchronized (mLock) {
-                    while (mActive && (mPendingFrameData == null)) {
-                        try {
-                            // Wait for the next frame to be received from the camera, since we
-                            // don't have it yet.
-                            mLock.wait();
-                        } catch (InterruptedException e) {
-                            Log.d(TAG, "Frame processing loop terminated.", e);
-                            return;
-                        }
-                    }
-
-                    if (!mActive) {
-                        // Exit the loop once this camera source is stopped or released.  We check
-                        // this here, immediately after the wait() above, to handle the case where
-                        // setActive(false) had been called, triggering the termination of this
-                        // loop.
-                        return;
-                    }
+                if (!mActive) {
+                    // Exit the loop once this camera source is stopped or released.  We check
+                    // this here, right after every wait below, to handle the case where
+                    // setActive(false) had been called, triggering the termination of this
+                    // loop.
+                    return;
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    Log.d(TAG, "Frame processing loop terminated.");
+                    return;
+                }
 
-                    outputFrame = new Frame.Builder()
-                            .setImageData(mPendingFrameData, mPreviewSize.getWidth(),
-                                    mPreviewSize.getHeight(), ImageFormat.NV21)
-                            .setId(mPendingFrameId)
-                            .setTimestampMillis(mPendingTimeMillis)
-                            .setRotation(mRotation)
-                            .build();
-
-                    // Hold onto the frame data locally, so that we can use this for detection
-                    // below.  We need to clear mPendingFrameData to ensure that this buffer isn't
-                    // recycled back to the camera before we are done using that data.
-                    data = mPendingFrameData;
-                    mPendingFrameData = null;
+                // Taking the frame from the ring makes sure this buffer isn't recycled back to
+                // the camera before we are done using that data.
+                data = pool && !mPool.hasIdle() ? null : mRing.poll(mRecycler);
+                if (data == null) {
+                    // Wait for the next frame to be received from the camera, or for an idle
+                    // detector.  A wake up that came first lets this return at once.
+                    LockSupport.park(this);
+                    continue;
+                }
+                frameId = mRing.polledId();
+                timeMillis = mRing.polledTime();
+                if (mGate != null && !mGate.pass(data, mPreviewSize.getWidth(), mPreviewSize.getHeight(), timeMillis)) {
+                    // the same picture as the frame before, already detected or skipped
+                    mCamera.addCallbackBuffer(data.array());
+                    continue;
                 }
 
-                // The code below needs to run outside of synchronization, because this will allow
-                // the camera to add pending frame(s) while we are running detection on the current
-                // frame.
+                outputFrame = new Frame.Builder()
+                        .setImageData(data, mPreviewSize.getWidth(),
+                                mPreviewSize.getHeight(), ImageFormat.NV21)
+                        .setId(frameId)
+                        .setTimestampMillis(timeMillis)
+                        .setRotation(mRotation)
+                        .build();
+
+                if (pool) {
+                    final byte[] buffer = data.array();
+                    mPool.submit(outputFrame, () -> {
+                        mCamera.addCallbackBuffer(buffer);
+                        // a detector is idle, the next frame may go
+                        wake();
+                    });
+                    continue;
+                }
 
                 try {
-                    mDetector.receiveFrame(outputFrame);
+                    if (mChannelDetectors == null) {
+                        mDetector.receiveFrame(outputFrame);
+                    } else {
+                        receiveChannels(data, frameId, timeMillis);
+                    }
                 } catch (Throwable t) {
                     Log.e(TAG, "Exception thrown from receiver.", t);
                 } finally {
@@ -1182,5 +1378,24 @@ public class CameraSource {
                 }
             }
         }
+
+        /**
+         * Feeds every colour channel of the frame to its own detector, each one keeps tracking
+         * the codes of its channel across frames.
+         */
+        private void receiveChannels(ByteBuffer data, int frameId, long timeMillis) {
+            int width = mPreviewSize.getWidth();
+            int height = mPreviewSize.getHeight();
+            mSplitter.split(data, width, height);
+            for (int c = 0; c < ChannelSplitter.CHANNELS; c++) {
+                Frame channel = new Frame.Builder()
+                        .setImageData(mSplitter.get(c), width, height, ImageFormat.NV21)
+                        .setId(frameId)
+                        .setTimestampMillis(timeMillis)
+                        .setRotation(mRotation)
+                        .build();
+                mChannelDetectors[c].receiveFrame(channel);
+            }
+        }
     }
 }
@@ -0,0 +1,62 @@
+package com.del.qrt.camera;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Separates the red, green and blue channels of an NV21 preview frame into three grey NV21
+ * frames, so a detector can read codes composited by colour channel.  The output buffers are
+ * allocated once per preview size and reused; not thread safe.
+ */
+class ChannelSplitter {
+
+    static final int CHANNELS = 3;
+
+    private final ByteBuffer[] channels = new ByteBuffer[CHANNELS];
+    private int width;
+    private int height;
+
+    /**
+     * Channel of the last {@link #split(ByteBuffer, int, int)}, valid until the next call.
+     */
+    ByteBuffer get(int channel) {
+        return channels[channel];
+    }
+
+    void split(ByteBuffer frame, int width, int height) {
+        int size = width * height;
+        if (width != this.width || height != this.height) {
+            // grey frames: the luma is the channel value, the chroma is neutral
+            int length = size + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+            for (int c = 0; c < CHANNELS; c++) {
+                byte[] bytes = new byte[length];
+                Arrays.fill(bytes, size, length, (byte) 128);
+                channels[c] = ByteBuffer.wrap(bytes);
+            }
+            this.width = width;
+            this.height = height;
+        }
+        byte[] nv21 = frame.array();
+        byte[] red = channels[0].array();
+        byte[] green = channels[1].array();
+        byte[] blue = channels[2].array();
+        for (int y = 0; y < height; y++) {
+            int i = y * width;
+            int chroma = size + (y >> 1) * width;
+            for (int x = 0; x < width; x++, i++) {
+                int luma = nv21[i] & 0xFF;
+                int offset = chroma + (x & ~1);
+                int v = (nv21[offset] & 0xFF) - 128;
+                int u = (nv21[offset + 1] & 0xFF) - 128;
+                // BT.601 full range, 8 bit fixed point
+                red[i] = clamp(luma + ((359 * v) >> 8));
+                green[i] = clamp(luma - ((88 * u + 183 * v) >> 8));
+                blue[i] = clamp(luma + ((454 * u) >> 8));
+            }
+        }
+    }
+
+    private static byte clamp(int value) {
+        return (byte) (value < 0 ? 0 : Math.min(value, 255));
+    }
+}
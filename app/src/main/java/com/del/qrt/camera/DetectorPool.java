@@ -0,0 +1,144 @@
+package com.del.qrt.camera;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.google.android.gms.vision.Detector;
+import com.google.android.gms.vision.Frame;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs detection of several frames at once, one detector per thread, and passes the detections
+ * to a single processor in the order the frames were submitted.  The trackers behind the
+ * processor see the frames as if one detector had read them all.
+ */
+class DetectorPool<T> {
+
+    private static final String TAG = "DetectorPool";
+
+    private final List<Detector<T>> mDetectors;
+    private final Detector.Processor<T> mProcessor;
+    private final ExecutorService mExecutor;
+
+    // guards the idle detectors, the frames in work and the submission order
+    private final Object mLock = new Object();
+    private final ArrayDeque<Detector<T>> mIdle;
+    private int mBusy;
+    private long mSubmitted;
+
+    // guards the detections waiting for an earlier frame, the processor is called under it
+    private final Object mDeliveryLock = new Object();
+    private final Map<Long, Detector.Detections<T>> mWaiting = new HashMap<>();
+    private long mDelivered;
+
+    DetectorPool(List<? extends Detector<T>> detectors, Detector.Processor<T> processor) {
+        if (detectors.isEmpty()) {
+            throw new IllegalArgumentException("No detector supplied.");
+        }
+        mDetectors = new ArrayList<>(detectors);
+        mProcessor = processor;
+        mIdle = new ArrayDeque<>(mDetectors);
+        mExecutor = Executors.newFixedThreadPool(mDetectors.size());
+    }
+
+    int size() {
+        return mDetectors.size();
+    }
+
+    boolean hasIdle() {
+        synchronized (mLock) {
+            return !mIdle.isEmpty();
+        }
+    }
+
+    /**
+     * Detects the frame on an idle detector, see {@link #hasIdle()}.
+     *
+     * @param done called on the detection thread once the frame data is no longer used and the
+     *             detector is idle again
+     */
+    void submit(Frame frame, Runnable done) {
+        final Detector<T> detector;
+        final long sequence;
+        synchronized (mLock) {
+            detector = mIdle.poll();
+            if (detector == null) throw new IllegalStateException("No idle detector");
+            sequence = mSubmitted++;
+            mBusy++;
+        }
+        mExecutor.execute(() -> {
+            Detector.Detections<T> detections = null;
+            try {
+                SparseArray<T> items = detector.detect(frame);
+                detections = new Detector.Detections<>(items, frame.getMetadata(), detector.isOperational());
+            } catch (Throwable t) {
+                Log.e(TAG, "Exception thrown from detector.", t);
+            }
+            synchronized (mLock) {
+                mIdle.add(detector);
+            }
+            try {
+                done.run();
+            } catch (Throwable t) {
+                Log.e(TAG, "Exception thrown when recycling the frame.", t);
+            }
+            try {
+                deliver(sequence, detections);
+            } finally {
+                synchronized (mLock) {
+                    mBusy--;
+                    mLock.notifyAll();
+                }
+            }
+        });
+    }
+
+    /**
+     * Passes on the detections of the frame and of the later frames that were waiting for it.
+     * A frame that failed is skipped.
+     */
+    private void deliver(long sequence, Detector.Detections<T> detections) {
+        synchronized (mDeliveryLock) {
+            mWaiting.put(sequence, detections);
+            while (mWaiting.containsKey(mDelivered)) {
+                Detector.Detections<T> next = mWaiting.remove(mDelivered++);
+                if (next == null) continue;
+                try {
+                    mProcessor.receiveDetections(next);
+                } catch (Throwable t) {
+                    Log.e(TAG, "Exception thrown from receiver.", t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for the frames in work, so their buffers are back before the camera goes and their
+     * detections are passed on.
+     */
+    void awaitIdle() throws InterruptedException {
+        synchronized (mLock) {
+            while (mBusy > 0) {
+                mLock.wait();
+            }
+        }
+    }
+
+    /**
+     * Releases the detectors except the given one, released by its owner, and the processor.
+     */
+    void release(Detector<?> owned) {
+        mExecutor.shutdown();
+        for (Detector<T> detector : mDetectors) {
+            if (detector != owned) detector.release();
+        }
+        mProcessor.release();
+    }
+}
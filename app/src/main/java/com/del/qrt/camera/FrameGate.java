@@ -0,0 +1,103 @@
+package com.del.qrt.camera;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tells whether a preview frame differs from the previous one enough to be worth detecting.
+ * The luma plane of the NV21 frame is sampled on a sparse grid and summed over a few blocks;
+ * the frame passes when the mean brightness of any block moved by more than the threshold, or
+ * when a refresh is due.  A sender holds every code for several frames, so most frames are the
+ * same picture and only cost the sampling.  Not thread safe.
+ */
+class FrameGate {
+
+    // blocks across and down the frame
+    static final int COLUMNS = 16;
+    static final int ROWS = 12;
+    // every STEP-th pixel of every STEP-th row is sampled
+    static final int STEP = 4;
+    // change of the mean luma of a block that counts as a new picture, noise averages out
+    static final int THRESHOLD = 4;
+    // frames are detected at least that often, for changes too slow to be seen
+    static final long REFRESH_MILLIS = 1000;
+
+    private final int[] mSums = new int[COLUMNS * ROWS];
+    private final int[] mCounts = new int[COLUMNS * ROWS];
+    private int[] mPrevious = new int[COLUMNS * ROWS];
+    private int[] mCurrent = new int[COLUMNS * ROWS];
+    // block column of every sampled pixel of a row
+    private int[] mColumns = new int[0];
+    private int mWidth;
+    private int mHeight;
+    private long mLastPassed;
+    private volatile long mSkipped;
+
+    /**
+     * Samples the frame and compares it with the previous one, which it then replaces.
+     *
+     * @param timeMillis time of the frame, for the refresh
+     * @return whether the frame should be detected
+     */
+    boolean pass(ByteBuffer nv21, int width, int height, long timeMillis) {
+        boolean resized = width != mWidth || height != mHeight;
+        if (resized) {
+            mWidth = width;
+            mHeight = height;
+            countSamples();
+        }
+        sample(nv21.array(), width, height);
+        boolean changed = resized || changed();
+        int[] swap = mPrevious;
+        mPrevious = mCurrent;
+        mCurrent = swap;
+        if (changed || timeMillis - mLastPassed >= REFRESH_MILLIS) {
+            mLastPassed = timeMillis;
+            return true;
+        }
+        mSkipped++;
+        return false;
+    }
+
+    /**
+     * Frames not detected since the gate was created.
+     */
+    long skipped() {
+        return mSkipped;
+    }
+
+    private void countSamples() {
+        mColumns = new int[(mWidth + STEP - 1) / STEP];
+        for (int i = 0; i < mColumns.length; i++) {
+            mColumns[i] = i * STEP * COLUMNS / mWidth;
+        }
+        Arrays.fill(mCounts, 0);
+        for (int y = 0; y < mHeight; y += STEP) {
+            int row = y * ROWS / mHeight * COLUMNS;
+            for (int column : mColumns) {
+                mCounts[row + column]++;
+            }
+        }
+    }
+
+    private void sample(byte[] luma, int width, int height) {
+        Arrays.fill(mSums, 0);
+        for (int y = 0; y < height; y += STEP) {
+            int row = y * ROWS / height * COLUMNS;
+            int offset = y * width;
+            for (int i = 0; i < mColumns.length; i++) {
+                mSums[row + mColumns[i]] += luma[offset + i * STEP] & 0xFF;
+            }
+        }
+        for (int i = 0; i < mSums.length; i++) {
+            mCurrent[i] = mCounts[i] > 0 ? mSums[i] / mCounts[i] : 0;
+        }
+    }
+
+    private boolean changed() {
+        for (int i = 0; i < mCurrent.length; i++) {
+            if (Math.abs(mCurrent[i] - mPrevious[i]) > THRESHOLD) return true;
+        }
+        return false;
+    }
+}
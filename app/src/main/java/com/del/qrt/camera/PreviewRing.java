@@ -0,0 +1,159 @@
+package com.del.qrt.camera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands the preview frames from the camera callback to the processing thread without locks:
+ * a ring written by the callback only and read by the processing thread only.  At most
+ * {@code depth} frames wait in it; the callback enforces that at once, so the camera never runs
+ * out of buffers while a detection is running.
+ * <p/>
+ * With the latest only policy a new frame pushes the oldest waiting one out, back to the
+ * camera, and the reader takes the newest; otherwise a frame that finds the ring full goes back
+ * to the camera and the reader takes every frame in turn.  Both sides claim a waiting frame by
+ * moving the head with a compare and set, so every buffer goes either to detection or back to
+ * the camera exactly once.  Frames given back unread are counted as dropped.
+ */
+class PreviewRing {
+
+    /**
+     * Takes back the buffer of a frame that is not processed, {@code Camera::addCallbackBuffer}.
+     */
+    interface Recycler {
+        void recycle(byte[] buffer);
+    }
+
+    private final ByteBuffer[] mData;
+    private final int[] mIds;
+    private final long[] mTimes;
+    private final int mMask;
+    private final int mDepth;
+    private final boolean mLatestOnly;
+
+    // moved by whichever side claims the oldest frame
+    private final AtomicLong mHead = new AtomicLong();
+    // written by the camera callback only
+    private volatile long mTail;
+    private volatile long mProduced;
+    // written by the processing thread only
+    private volatile long mProcessed;
+    private int mPolledId;
+    private long mPolledTime;
+
+    private final AtomicLong mDropped = new AtomicLong();
+
+    /**
+     * @param depth      frames that may wait
+     * @param latestOnly whether the frames waiting behind a newer one are dropped
+     */
+    PreviewRing(int depth, boolean latestOnly) {
+        // a slot is written again only once the head is a whole ring past it
+        int size = Integer.highestOneBit(Math.max(1, depth - 1)) << 1;
+        mData = new ByteBuffer[size];
+        mIds = new int[size];
+        mTimes = new long[size];
+        mMask = size - 1;
+        mDepth = depth;
+        mLatestOnly = latestOnly;
+    }
+
+    int depth() {
+        return mDepth;
+    }
+
+    /**
+     * Adds a frame, from the camera callback.  With the latest only policy the oldest waiting
+     * frames make room, otherwise a full ring refuses the frame.
+     *
+     * @return false if the frame was not taken, it goes back to the camera and is counted as
+     * dropped
+     */
+    boolean offer(ByteBuffer data, int id, long timeMillis, Recycler camera) {
+        long tail = mTail;
+        mProduced = mProduced + 1;
+        long head;
+        while (tail - (head = mHead.get()) >= mDepth) {
+            if (!mLatestOnly) {
+                mDropped.incrementAndGet();
+                return false;
+            }
+            ByteBuffer oldest = mData[(int) head & mMask];
+            if (mHead.compareAndSet(head, head + 1)) {
+                camera.recycle(oldest.array());
+                mDropped.incrementAndGet();
+            }
+        }
+        int slot = (int) tail & mMask;
+        mData[slot] = data;
+        mIds[slot] = id;
+        mTimes[slot] = timeMillis;
+        // publishes the slot
+        mTail = tail + 1;
+        return true;
+    }
+
+    /**
+     * Takes the next frame to process, from the processing thread.  The frames skipped by the
+     * latest only policy go back to the camera.
+     *
+     * @return null if there is no frame, otherwise see {@link #polledId()} and {@link #polledTime()}
+     */
+    ByteBuffer poll(Recycler camera) {
+        while (true) {
+            long head = mHead.get();
+            long tail = mTail;
+            if (head >= tail) return null;
+            int slot = (int) head & mMask;
+            ByteBuffer data = mData[slot];
+            int id = mIds[slot];
+            long time = mTimes[slot];
+            // lost to the camera callback making room, or to nobody: look again
+            if (!mHead.compareAndSet(head, head + 1)) continue;
+            if (mLatestOnly && head + 1 < tail) {
+                camera.recycle(data.array());
+                mDropped.incrementAndGet();
+                continue;
+            }
+            mPolledId = id;
+            mPolledTime = time;
+            mProcessed = mProcessed + 1;
+            return data;
+        }
+    }
+
+    int polledId() {
+        return mPolledId;
+    }
+
+    long polledTime() {
+        return mPolledTime;
+    }
+
+    /**
+     * Forgets the frames, while neither the camera nor the processing thread runs: their buffers
+     * belong to a camera that is gone.
+     */
+    void clear() {
+        for (int i = 0; i < mData.length; i++) {
+            mData[i] = null;
+        }
+        mHead.set(0);
+        mTail = 0;
+        mProduced = 0;
+        mProcessed = 0;
+        mDropped.set(0);
+    }
+
+    long produced() {
+        return mProduced;
+    }
+
+    long processed() {
+        return mProcessed;
+    }
+
+    long dropped() {
+        return mDropped.get();
+    }
+}
@@ -0,0 +1,40 @@
+package com.del.qrt.db;
+
+import android.content.Context;
+
+import androidx.room.Database;
+import androidx.room.Room;
+import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+
+@Database(entities = {TransferState.class}, version = 2, exportSchema = false)
+public abstract class AppDatabase extends RoomDatabase {
+
+    private static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(SupportSQLiteDatabase db) {
+            db.execSQL("ALTER TABLE transfer_state ADD COLUMN fingerprint BLOB");
+        }
+    };
+
+    private static volatile AppDatabase instance;
+
+    public abstract TransferStateDao transferStates();
+
+    /**
+     * The database of the application, must not be used on the main thread.
+     */
+    public static AppDatabase get(Context context) {
+        if (instance == null) {
+            synchronized (AppDatabase.class) {
+                if (instance == null) {
+                    instance = Room.databaseBuilder(context.getApplicationContext(), AppDatabase.class, "qrtransfer.db")
+                            .addMigrations(MIGRATION_1_2)
+                            .build();
+                }
+            }
+        }
+        return instance;
+    }
+}
@@ -0,0 +1,42 @@
+package com.del.qrt.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+/**
+ * Saved progress of a transfer being received, see
+ * {@link com.del.qrt.transfer.ResumableTransfer}.  The data itself stays in the reassembly file
+ * named after the key.
+ */
+@Entity(tableName = "transfer_state")
+public class TransferState {
+
+    @PrimaryKey
+    @NonNull
+    public String key = "";
+
+    /**
+     * Name of the file when the transfer tells it, null otherwise.
+     */
+    public String name;
+
+    public long length;
+
+    public int partSize;
+
+    public int partCount;
+
+    /**
+     * Bitset of the parts received, {@link java.util.BitSet#toByteArray()}.
+     */
+    public byte[] received;
+
+    /**
+     * Tells the content of the parts received when the key does not, see
+     * {@link com.del.qrt.transfer.ResumableTransfer#getFingerprint()}.
+     */
+    public byte[] fingerprint;
+
+    public long updated;
+}
@@ -0,0 +1,27 @@
+package com.del.qrt.db;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
+import androidx.room.Query;
+
+import java.util.List;
+
+@Dao
+public interface TransferStateDao {
+
+    @Query("SELECT * FROM transfer_state WHERE `key` = :key")
+    TransferState find(String key);
+
+    @Query("SELECT * FROM transfer_state")
+    List<TransferState> findAll();
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void save(TransferState state);
+
+    @Query("DELETE FROM transfer_state WHERE `key` = :key")
+    void delete(String key);
+
+    @Query("DELETE FROM transfer_state WHERE updated < :before")
+    void deleteOlderThan(long before);
+}
@@ -0,0 +1,107 @@
+package com.del.qrt.transfer;
+
+import com.google.zxing.qrcode.decoder.Mode;
+
+import java.util.Arrays;
+
+/**
+ * Base45 (RFC 9285), see {@link PayloadCodec#BASE45}.
+ */
+final class Base45Codec implements PayloadCodec {
+
+    private static final char[] ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ $%*+-./:".toCharArray();
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    static boolean isAlphabet(char c) {
+        return c < 128 && VALUES[c] >= 0;
+    }
+
+    @Override
+    public byte getId() {
+        return 2;
+    }
+
+    @Override
+    public String getCharset() {
+        // only alphanumeric characters, the charset does not matter
+        return "ISO-8859-1";
+    }
+
+    @Override
+    public Mode getMode() {
+        return Mode.ALPHANUMERIC;
+    }
+
+    @Override
+    public int bytesFor(int characters) {
+        return characters / 3 * 2 + (characters % 3 == 2 ? 1 : 0);
+    }
+
+    @Override
+    public String encode(byte[] frame) {
+        int pairs = frame.length / 2;
+        char[] out = new char[pairs * 3 + (frame.length % 2) * 2];
+        int o = 0;
+        for (int i = 0; i < pairs * 2; i += 2) {
+            int n = (frame[i] & 0xFF) << 8 | (frame[i + 1] & 0xFF);
+            out[o++] = ALPHABET[n % 45];
+            n /= 45;
+            out[o++] = ALPHABET[n % 45];
+            out[o++] = ALPHABET[n / 45];
+        }
+        if (frame.length % 2 != 0) {
+            int n = frame[frame.length - 1] & 0xFF;
+            out[o++] = ALPHABET[n % 45];
+            out[o] = ALPHABET[n / 45];
+        }
+        return new String(out);
+    }
+
+    @Override
+    public byte[] decode(String text) {
+        int length = text.length();
+        if (length % 3 == 1) throw new IllegalArgumentException("Неверная длина Base45");
+        byte[] out = new byte[length / 3 * 2 + (length % 3 == 2 ? 1 : 0)];
+        int o = 0;
+        for (int i = 0; i < length; i += 3) {
+            int n = value(text, i) + value(text, i + 1) * 45;
+            if (i + 2 < length) {
+                n += value(text, i + 2) * 45 * 45;
+                if (n > 0xFFFF) throw new IllegalArgumentException("Неверные данные Base45");
+                out[o++] = (byte) (n >> 8);
+                out[o++] = (byte) n;
+            } else {
+                if (n > 0xFF) throw new IllegalArgumentException("Неверные данные Base45");
+                out[o++] = (byte) n;
+            }
+        }
+        return out;
+    }
+
+    @Override
+    public int peek(String text, int index) {
+        int i = index / 2 * 3;
+        int n = digit(text, i) + digit(text, i + 1) * 45;
+        if (i + 2 >= text.length()) return n & 0xFF;
+        n += digit(text, i + 2) * 45 * 45;
+        return index % 2 == 0 ? n >> 8 & 0xFF : n & 0xFF;
+    }
+
+    private static int digit(String text, int i) {
+        char c = text.charAt(i);
+        return c < 128 ? VALUES[c] & 0xFF : 0;
+    }
+
+    private static int value(String text, int i) {
+        char c = text.charAt(i);
+        if (!isAlphabet(c)) throw new IllegalArgumentException("Неверный символ Base45");
+        return VALUES[c];
+    }
+}
@@ -0,0 +1,148 @@
+package com.del.qrt.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Packed message (see {@link MessageBlob}) cut into symbols of equal size.  The transfer id is
+ * derived from the checksum of the whole body, so the symbols can be read once the checksum pass
+ * of the reading thread is over, the frame threads wait in {@link #awaitFinished()}.
+ * <p/>
+ * Only the header and the checksum are stored, they are put around the body when a symbol is
+ * read.  The body is kept where it already is, e.g. in a file mapped into memory (see
+ * {@link #write(ByteBuffer)}), so a file larger than the heap can be sent.
+ */
+class BlobBuffer {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final byte[] header;
+    private final byte[] trailer = new byte[MessageBlob.TRAILER_SIZE];
+    private final int length;
+    private final int symbolSize;
+    private final int symbolCount;
+    private final CRC32 crc = new CRC32();
+
+    // Written by the reading thread only, before the blob is finished
+    private ByteBuffer body;
+    private int written;
+    private volatile int transferId;
+    private volatile boolean finished;
+    private volatile IOException failure;
+
+    BlobBuffer(String name, byte metaInfo, long bodyLength, int symbolSize) throws IOException {
+        this.header = MessageBlob.header(name, metaInfo);
+        long total = header.length + bodyLength + MessageBlob.TRAILER_SIZE;
+        // the receiver refuses a larger transfer
+        if (total > MessageBlob.MAX_LENGTH || (total + symbolSize - 1) / symbolSize > MessageBlob.MAX_SYMBOLS) {
+            throw new IOException("Слишком большой файл");
+        }
+        this.length = (int) total;
+        this.symbolSize = symbolSize;
+        this.symbolCount = Math.max(1, (length + symbolSize - 1) / symbolSize);
+        this.written = header.length;
+    }
+
+    int getLength() {
+        return length;
+    }
+
+    int getSymbolSize() {
+        return symbolSize;
+    }
+
+    int getSymbolCount() {
+        return symbolCount;
+    }
+
+    /**
+     * Known once the blob is finished.
+     */
+    int getTransferId() {
+        return transferId;
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Copies bytes of the finished blob, the tail of the last symbol reads as zeros.
+     */
+    void read(int offset, byte[] b, int off, int len) {
+        int bodyEnd = length - MessageBlob.TRAILER_SIZE;
+        while (len > 0) {
+            int n;
+            if (offset < header.length) {
+                n = Math.min(len, header.length - offset);
+                System.arraycopy(header, offset, b, off, n);
+            } else if (offset < bodyEnd) {
+                n = Math.min(len, bodyEnd - offset);
+                ByteBuffer source = body.duplicate();
+                source.position(offset - header.length);
+                source.get(b, off, n);
+            } else if (offset < length) {
+                n = Math.min(len, length - offset);
+                System.arraycopy(trailer, offset - bodyEnd, b, off, n);
+            } else {
+                n = len;
+                Arrays.fill(b, off, off + n, (byte) 0);
+            }
+            offset += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Takes the whole body from the given buffer, which is kept rather than copied, and finishes
+     * the blob.  The body is read once for the checksum.
+     */
+    void write(ByteBuffer content) throws IOException {
+        if (body != null || content.remaining() != length - MessageBlob.TRAILER_SIZE - written) {
+            throw new IOException("Размер файла изменился");
+        }
+        body = content.slice();
+        ByteBuffer in = body.duplicate();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        while (in.hasRemaining()) {
+            int n = Math.min(chunk.length, in.remaining());
+            in.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+            written += n;
+        }
+        finish();
+    }
+
+    private void finish() throws IOException {
+        if (written != length - MessageBlob.TRAILER_SIZE) throw new IOException("Размер файла изменился");
+        ByteBuffer.wrap(trailer).putInt((int) crc.getValue());
+        transferId = MessageBlob.transferId((int) crc.getValue(), length, symbolSize);
+        written = length;
+        synchronized (this) {
+            finished = true;
+            notifyAll();
+        }
+    }
+
+    synchronized void fail(IOException e) {
+        failure = e;
+        notifyAll();
+    }
+
+    /**
+     * Waits until the whole body is in.
+     */
+    synchronized void awaitFinished() throws IOException {
+        while (!finished) {
+            if (failure != null) throw failure;
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.del.qrt.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Encoder fed with the body of the file, it reads the body through while the frames are shown.
+ */
+public interface BodyWriter {
+
+    /**
+     * Takes the whole body at once and marks it complete.  The encoder keeps the buffer instead
+     * of copying it, so it can be a file mapped into memory.
+     *
+     * @throws IOException if the size does not match
+     */
+    void write(ByteBuffer body) throws IOException;
+
+    /**
+     * Wakes up the readers of the frames when the body could not be read.
+     */
+    void fail(IOException e);
+}
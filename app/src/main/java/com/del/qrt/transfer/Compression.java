@@ -0,0 +1,71 @@
+package com.del.qrt.transfer;
+
+import com.del.qr.Message;
+
+import java.util.zip.Deflater;
+
+/**
+ * Chooses whether and how hard to compress a file before sending.  The first block of the file is
+ * deflated at a few levels, and a harder level is taken only when it makes the sample noticeably
+ * smaller than the faster one.  Data that does not shrink, like JPEG, video or archives, is sent
+ * as is.
+ * <p/>
+ * The choice depends on the content only, never on timing or on the screen: the transfer id is
+ * taken from the first frame, so every sender of a file, and every send of it, must produce the
+ * same body for the shares to merge and an interrupted reception to resume.
+ * <p/>
+ * A compressed body is a zip archive with a single entry, flagged in the meta info, the way
+ * {@link Message#unzip()} expects it.
+ */
+public final class Compression {
+
+    /**
+     * Send the body as is.
+     */
+    public static final int STORE = -1;
+
+    /**
+     * Meta info of a compressed body.
+     */
+    public static final byte ZIP_META = 1 << Message.BIT_ZIP;
+
+    public static final int SAMPLE_SIZE = 256 * 1024;
+
+    // fastest, default and best
+    private static final int[] LEVELS = {Deflater.BEST_SPEED, 6, Deflater.BEST_COMPRESSION};
+    // a sample that does not get smaller than that is not worth compressing
+    private static final double MAX_RATIO = 0.97;
+    // part of the sample a harder level has to save over the faster one
+    private static final double MIN_GAIN = 0.02;
+
+    private Compression() {
+    }
+
+    /**
+     * @param sample first bytes of the file, {@link #SAMPLE_SIZE} of them unless the file is shorter
+     * @return deflate level, or {@link #STORE}
+     */
+    public static int choose(byte[] sample, int sampleLength) {
+        if (sampleLength == 0) return STORE;
+        int best = STORE;
+        double bestRatio = MAX_RATIO;
+        byte[] out = new byte[16 * 1024];
+        for (int level : LEVELS) {
+            Deflater deflater = new Deflater(level, true);
+            deflater.setInput(sample, 0, sampleLength);
+            deflater.finish();
+            long compressed = 0;
+            while (!deflater.finished()) {
+                compressed += deflater.deflate(out);
+            }
+            deflater.end();
+            double ratio = (double) compressed / sampleLength;
+            // the fastest level tells whether the data compresses at all, a harder one has to
+            // pay for its time
+            if (best == STORE ? ratio > MAX_RATIO : bestRatio - ratio < MIN_GAIN) return best;
+            best = level;
+            bestRatio = ratio;
+        }
+        return best;
+    }
+}
@@ -0,0 +1,247 @@
+package com.del.qrt.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Receiver side of the rateless transfer mode.  Incremental peeling decoder: every frame is
+ * reduced by the source symbols already known, and a frame left with a single unknown symbol
+ * releases it, which in turn may release other waiting frames.  The decoded source symbols go
+ * straight to a {@link ReassemblyFile}, the decoder must be closed.
+ */
+public class FountainDecoder implements ResumableTransfer {
+
+    private final int transferId;
+    private final int length;
+    private final int symbolSize;
+    private final LtCode code;
+    private final int[] neighbours;
+
+    private final ReassemblyFile source;
+    private final byte[] symbol;
+    private final List<Pending>[] waiting;
+    private final BitSet seen = new BitSet();
+    private final int[] ripple;
+
+    private static class Pending {
+        final byte[] data;
+        final int[] neighbours;
+        int degree;
+
+        Pending(byte[] data, int[] neighbours) {
+            this.data = data;
+            this.neighbours = neighbours;
+            this.degree = neighbours.length;
+        }
+    }
+
+    /**
+     * Checks whether the decoded frame belongs to the rateless mode.
+     */
+    public static boolean isFountainFrame(byte[] frame) {
+        return frame.length > FountainEncoder.HEADER_SIZE && frame[0] == FountainEncoder.TYPE
+                && frame[1] == MessageBlob.FRAME_VERSION;
+    }
+
+    public static int transferId(byte[] frame) {
+        return ByteBuffer.wrap(frame).getInt(2);
+    }
+
+    /**
+     * Creates a decoder for the transfer the given frame belongs to.
+     *
+     * @param dir directory of the reassembly file
+     * @throws IOException if the frame is damaged: the layout is out of bounds or the symbol does
+     *                     not fit it
+     */
+    public static FountainDecoder forFrame(byte[] frame, File dir) throws IOException {
+        if (!isFountainFrame(frame)) throw new IOException("Повреждённые данные");
+        ByteBuffer header = ByteBuffer.wrap(frame);
+        int symbolSize = header.getShort(10) & 0xFFFF;
+        if (frame.length != FountainEncoder.HEADER_SIZE + symbolSize || header.getInt(12) < 0) {
+            throw new IOException("Повреждённые данные");
+        }
+        return new FountainDecoder(header.getInt(2), header.getInt(6), symbolSize, dir);
+    }
+
+    /**
+     * @throws IOException if the layout is out of bounds or the reassembly file can not be created
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public FountainDecoder(int transferId, int length, int symbolSize, File dir) throws IOException {
+        int k = MessageBlob.symbolCount(length, symbolSize);
+        this.transferId = transferId;
+        this.length = length;
+        this.symbolSize = symbolSize;
+        this.code = new LtCode(k);
+        this.neighbours = new int[k];
+        this.source = new ReassemblyFile(dir, String.format("f%08x", transferId), (long) k * symbolSize, symbolSize);
+        this.symbol = new byte[symbolSize];
+        this.waiting = new List[k];
+        this.ripple = new int[k];
+    }
+
+    public int getTransferId() {
+        return transferId;
+    }
+
+    public int getSymbolCount() {
+        return code.getSymbolCount();
+    }
+
+    @Override
+    public String getKey() {
+        return String.format("f%08x", transferId);
+    }
+
+    @Override
+    public int getPartSize() {
+        return symbolSize;
+    }
+
+    @Override
+    public int getPartCount() {
+        return code.getSymbolCount();
+    }
+
+    public int getDecodedCount() {
+        return source.getReceivedCount();
+    }
+
+    public boolean isComplete() {
+        return source.isComplete();
+    }
+
+    /**
+     * Whether the frame of the given symbol id was fed already.
+     */
+    public boolean hasSymbol(int esi) {
+        return esi >= 0 && seen.get(esi);
+    }
+
+    /**
+     * Feeds one frame (as bytes) to the decoder.
+     *
+     * @return true if the frame was not seen before
+     */
+    public boolean add(byte[] frame) {
+        ByteBuffer header = ByteBuffer.wrap(frame);
+        if (!isFountainFrame(frame) || header.getInt(2) != transferId || header.getInt(6) != length
+                || (header.getShort(10) & 0xFFFF) != symbolSize
+                || frame.length != FountainEncoder.HEADER_SIZE + symbolSize) {
+            return false;
+        }
+        int esi = header.getInt(12);
+        if (esi < 0 || seen.get(esi)) return false;
+        seen.set(esi);
+        if (isComplete()) return true;
+
+        int degree = code.neighbours(transferId, esi, neighbours);
+        byte[] data = Arrays.copyOfRange(frame, FountainEncoder.HEADER_SIZE,
+                FountainEncoder.HEADER_SIZE + symbolSize);
+        int unknown = 0;
+        for (int i = 0; i < degree; i++) {
+            int s = neighbours[i];
+            if (source.has(s)) {
+                xor(data, s);
+            } else {
+                neighbours[unknown++] = s;
+            }
+        }
+        if (unknown == 1) {
+            release(neighbours[0], data);
+        } else if (unknown > 1) {
+            Pending p = new Pending(data, Arrays.copyOf(neighbours, unknown));
+            for (int s : p.neighbours) {
+                if (waiting[s] == null) waiting[s] = new ArrayList<>(4);
+                waiting[s].add(p);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The complete message, read from the reassembly file which it takes over: the decoder must
+     * not be used afterwards.
+     *
+     * @throws IOException if the header is damaged, the body is checked when read
+     */
+    public ReceivedMessage open() throws IOException {
+        if (!isComplete()) throw new IOException("Передача не завершена");
+        return MessageBlob.open(source, length);
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public BitSet getReceived() {
+        return source.getReceived();
+    }
+
+    @Override
+    public boolean restore(long length, int partSize, BitSet received) {
+        if (length != this.length || partSize != symbolSize) return false;
+        source.restore(received);
+        return true;
+    }
+
+    @Override
+    public void flush() {
+        source.flush();
+    }
+
+    @Override
+    public void delete() {
+        source.delete();
+    }
+
+    @Override
+    public void close() {
+        source.close();
+    }
+
+    private void release(int first, byte[] data) {
+        int top = 0;
+        learn(first, data);
+        ripple[top++] = first;
+        while (top > 0) {
+            int s = ripple[--top];
+            List<Pending> list = waiting[s];
+            waiting[s] = null;
+            if (list == null) continue;
+            for (Pending p : list) {
+                if (p.degree == 0) continue;
+                xor(p.data, s);
+                if (--p.degree == 1) {
+                    for (int n : p.neighbours) {
+                        if (!source.has(n)) {
+                            learn(n, p.data);
+                            ripple[top++] = n;
+                            break;
+                        }
+                    }
+                    p.degree = 0;
+                }
+            }
+        }
+    }
+
+    private void learn(int s, byte[] data) {
+        source.put(s, data, 0);
+    }
+
+    private void xor(byte[] data, int s) {
+        source.get(s, symbol, 0);
+        for (int i = 0; i < symbolSize; i++) {
+            data[i] ^= symbol[i];
+        }
+    }
+}
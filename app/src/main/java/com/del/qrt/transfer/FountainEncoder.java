@@ -0,0 +1,121 @@
+package com.del.qrt.transfer;
+
+import com.del.qr.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sender side of the rateless transfer mode.  Produces an endless stream of frames for one
+ * message; the receiver can rebuild the message from any slightly more than
+ * {@link #getSymbolCount()} distinct frames, regardless of which ones were missed.
+ * <p/>
+ * The body is read through once for its checksum, which the transfer id is derived from; the
+ * frames wait for the end of that pass.
+ * <p/>
+ * Frame layout:
+ * <pre>
+ *   byte   'f'
+ *   byte   frame version, {@link MessageBlob#FRAME_VERSION}
+ *   int    transfer id
+ *   int    packed message length
+ *   short  symbol size
+ *   int    symbol id
+ *   byte[] symbol
+ * </pre>
+ */
+public class FountainEncoder implements BodyWriter {
+
+    public static final byte TYPE = 'f';
+    public static final int HEADER_SIZE = 16;
+
+    private final BlobBuffer blob;
+    private final PayloadCodec codec;
+    private final QrFormat format;
+    private final LtCode code;
+    private final int[] neighbours;
+    // a source symbol being added, guarded by code
+    private final byte[] symbol;
+
+    public FountainEncoder(Message m, PayloadCodec codec, QrFormat format) throws IOException {
+        this(m.getName(), m.getMetaInfo(), m.getBody() != null ? m.getBody().length : 0, codec, format);
+        write(ByteBuffer.wrap(m.getBody() != null ? m.getBody() : new byte[0]));
+    }
+
+    /**
+     * Encoder for a body of the given length, to be fed with {@link #write(ByteBuffer)}.
+     * The symbols fill a code of the given format to the last byte.
+     */
+    public FountainEncoder(String name, byte metaInfo, long bodyLength, PayloadCodec codec, QrFormat format)
+            throws IOException {
+        int symbolSize = format.frameBytes(codec) - HEADER_SIZE;
+        if (symbolSize <= 0) throw new IOException("Версия QR слишком мала: " + format);
+        this.blob = new BlobBuffer(name, metaInfo, bodyLength, symbolSize);
+        this.codec = codec;
+        this.format = format;
+        this.code = new LtCode(blob.getSymbolCount());
+        this.neighbours = new int[blob.getSymbolCount()];
+        this.symbol = new byte[symbolSize];
+    }
+
+    @Override
+    public void write(ByteBuffer body) throws IOException {
+        blob.write(body);
+    }
+
+    @Override
+    public void fail(IOException e) {
+        blob.fail(e);
+    }
+
+    public PayloadCodec getCodec() {
+        return codec;
+    }
+
+    public QrFormat getFormat() {
+        return format;
+    }
+
+    public int getTransferId() {
+        return blob.getTransferId();
+    }
+
+    public int getSymbolCount() {
+        return code.getSymbolCount();
+    }
+
+    /**
+     * Number of frames that can be produced right now: none until the checksum of the whole body,
+     * which the transfer id is derived from, is known.
+     */
+    public long available() {
+        return blob.isFinished() ? Long.MAX_VALUE : 0;
+    }
+
+    /**
+     * Encoded frame for the given symbol id, waits for the body if it is not read yet.  Ids below
+     * {@link #getSymbolCount()} carry the source symbols as is, any larger id is a repair symbol.
+     */
+    public byte[] symbol(int esi) throws IOException {
+        blob.awaitFinished();
+        int symbolSize = blob.getSymbolSize();
+        synchronized (code) {
+            ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + symbolSize);
+            frame.put(TYPE);
+            frame.put(MessageBlob.FRAME_VERSION);
+            frame.putInt(blob.getTransferId());
+            frame.putInt(blob.getLength());
+            frame.putShort((short) symbolSize);
+            frame.putInt(esi);
+            byte[] out = frame.array();
+            int degree = code.neighbours(blob.getTransferId(), esi, neighbours);
+            for (int i = 0; i < degree; i++) {
+                blob.read(neighbours[i] * symbolSize, symbol, 0, symbolSize);
+                for (int j = 0; j < symbolSize; j++) {
+                    out[HEADER_SIZE + j] ^= symbol[j];
+                }
+            }
+            return out;
+        }
+    }
+}
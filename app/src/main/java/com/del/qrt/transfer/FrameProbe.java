@@ -0,0 +1,57 @@
+package com.del.qrt.transfer;
+
+/**
+ * Reads the header fields of a scanned frame of the second protocol version straight from its
+ * text, without decoding the frame or allocating, so repeats of a frame can be rejected before
+ * any parsing.
+ */
+public final class FrameProbe {
+
+    public static final int UNKNOWN = 0;
+    public static final int FOUNTAIN = 1;
+    public static final int META = 2;
+    public static final int DATA = 3;
+
+    private FrameProbe() {
+    }
+
+    /**
+     * Type of the frame, {@link #UNKNOWN} if the text is too short for the header of its type or
+     * has another frame version.
+     */
+    public static int type(PayloadCodec codec, String text) {
+        int bytes = codec.bytesFor(text.length());
+        if (bytes < 2 || codec.peek(text, 1) != (MessageBlob.FRAME_VERSION & 0xFF)) return UNKNOWN;
+        int type = codec.peek(text, 0);
+        if (type == FountainEncoder.TYPE && bytes > FountainEncoder.HEADER_SIZE) return FOUNTAIN;
+        if (type == PartEncoder.META && bytes == PartEncoder.META_SIZE) return META;
+        if (type == PartEncoder.DATA && bytes > PartEncoder.DATA_HEADER_SIZE) return DATA;
+        return UNKNOWN;
+    }
+
+    /**
+     * Transfer id of a frame of a known type.
+     */
+    public static int transferId(PayloadCodec codec, String text, int type) {
+        return getInt(codec, text, type == META ? 3 : 2);
+    }
+
+    /**
+     * Symbol id of a fountain frame.
+     */
+    public static int symbolId(PayloadCodec codec, String text) {
+        return getInt(codec, text, 12);
+    }
+
+    /**
+     * Part index of a data frame.
+     */
+    public static int partIndex(PayloadCodec codec, String text) {
+        return getInt(codec, text, 12);
+    }
+
+    private static int getInt(PayloadCodec codec, String text, int offset) {
+        return codec.peek(text, offset) << 24 | codec.peek(text, offset + 1) << 16
+                | codec.peek(text, offset + 2) << 8 | codec.peek(text, offset + 3);
+    }
+}
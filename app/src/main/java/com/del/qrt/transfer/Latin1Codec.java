@@ -0,0 +1,46 @@
+package com.del.qrt.transfer;
+
+import com.google.zxing.qrcode.decoder.Mode;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frame bytes as ISO-8859-1 characters, see {@link PayloadCodec#BINARY}.
+ */
+final class Latin1Codec implements PayloadCodec {
+
+    @Override
+    public byte getId() {
+        return 1;
+    }
+
+    @Override
+    public String getCharset() {
+        return "ISO-8859-1";
+    }
+
+    @Override
+    public Mode getMode() {
+        return Mode.BYTE;
+    }
+
+    @Override
+    public int bytesFor(int characters) {
+        return characters;
+    }
+
+    @Override
+    public String encode(byte[] frame) {
+        return new String(frame, StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public byte[] decode(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    @Override
+    public int peek(String text, int index) {
+        return text.charAt(index) & 0xFF;
+    }
+}
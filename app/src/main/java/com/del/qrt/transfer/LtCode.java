@@ -0,0 +1,93 @@
+package com.del.qrt.transfer;
+
+/**
+ * Shared part of the LT (Luby transform) code used by {@link FountainEncoder} and
+ * {@link FountainDecoder}.  Both sides derive the set of source symbols XOR-ed into an encoded
+ * symbol from (transfer id, symbol id) only, so nothing but the symbol id travels in a frame.
+ * <p/>
+ * The code is systematic: symbol ids below the symbol count are the source symbols themselves,
+ * every later id is a repair symbol with a robust soliton degree.
+ */
+final class LtCode {
+
+    private static final double C = 0.1;
+    private static final double DELTA = 0.5;
+
+    private final int k;
+    private final double[] cdf;
+    private final boolean[] mark;
+
+    LtCode(int k) {
+        this.k = k;
+        this.cdf = robustSoliton(k);
+        this.mark = new boolean[k];
+    }
+
+    int getSymbolCount() {
+        return k;
+    }
+
+    /**
+     * Fills {@code out} (at least {@link #getSymbolCount()} long) with the source symbol indexes
+     * of the given encoded symbol and returns their count.
+     */
+    int neighbours(int transferId, int esi, int[] out) {
+        if (esi < k) {
+            out[0] = esi;
+            return 1;
+        }
+        long state = seed(transferId, esi);
+        state = next(state);
+        double u = (state >>> 11) * 0x1.0p-53;
+        int degree = 1;
+        while (degree < k && cdf[degree - 1] < u) degree++;
+        int count = 0;
+        while (count < degree) {
+            state = next(state);
+            int index = (int) ((state >>> 33) % k);
+            if (!mark[index]) {
+                mark[index] = true;
+                out[count++] = index;
+            }
+        }
+        for (int i = 0; i < count; i++) mark[out[i]] = false;
+        return count;
+    }
+
+    private static long seed(int transferId, int esi) {
+        long z = ((long) transferId << 32) ^ (esi & 0xFFFFFFFFL);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return z != 0 ? z : 0x9E3779B97F4A7C15L;
+    }
+
+    private static long next(long x) {
+        x ^= x << 13;
+        x ^= x >>> 7;
+        x ^= x << 17;
+        return x;
+    }
+
+    private static double[] robustSoliton(int k) {
+        double[] p = new double[k];
+        double r = C * Math.log(k / DELTA) * Math.sqrt(k);
+        int spike = r > 0 ? (int) Math.max(1, Math.min(k, Math.round(k / r))) : k;
+        double sum = 0;
+        for (int d = 1; d <= k; d++) {
+            double rho = d == 1 ? 1.0 / k : 1.0 / ((double) d * (d - 1));
+            double tau = 0;
+            if (d < spike) tau = r / ((double) d * k);
+            else if (d == spike) tau = r * Math.log(r / DELTA) / k;
+            p[d - 1] = rho + Math.max(0, tau);
+            sum += p[d - 1];
+        }
+        double acc = 0;
+        for (int d = 0; d < k; d++) {
+            acc += p[d] / sum;
+            p[d] = acc;
+        }
+        p[k - 1] = 1.0;
+        return p;
+    }
+}
@@ -0,0 +1,140 @@
+package com.del.qrt.transfer;
+
+import com.del.qr.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Flat binary form of a {@link Message}: meta byte, name and body in one array.
+ * <pre>
+ *   byte   metaInfo
+ *   short  name length
+ *   byte[] name (UTF-8)
+ *   byte[] body
+ *   int    CRC32 of the body
+ * </pre>
+ * The checksum goes last, so a blob can be written while the body is still being read.
+ */
+public final class MessageBlob {
+
+    public static final int TRAILER_SIZE = 4;
+
+    /**
+     * Second byte of every frame of the second protocol version, after the frame type: tells the
+     * frames apart from other codes whose text happens to start with a frame type.
+     */
+    public static final byte FRAME_VERSION = (byte) 0xB2;
+
+    /**
+     * Bounds of the layout a frame announces: the packed message, a part or symbol (a version 40
+     * code holds 2953 bytes) and the number of them.
+     */
+    static final int MIN_LENGTH = 3 + TRAILER_SIZE;
+    static final int MAX_LENGTH = Integer.MAX_VALUE / 2;
+    static final int MAX_SYMBOL_SIZE = 2953;
+    static final int MAX_SYMBOLS = 1 << 21;
+
+    private MessageBlob() {
+    }
+
+    public static byte[] header(String name, byte metaInfo) {
+        byte[] bytes = name != null ? name.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        ByteBuffer buffer = ByteBuffer.allocate(3 + bytes.length);
+        buffer.put(metaInfo);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+        return buffer.array();
+    }
+
+    public static byte[] pack(Message m) {
+        byte[] header = header(m.getName(), m.getMetaInfo());
+        byte[] body = m.getBody() != null ? m.getBody() : new byte[0];
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        ByteBuffer buffer = ByteBuffer.allocate(header.length + body.length + TRAILER_SIZE);
+        buffer.put(header);
+        buffer.put(body);
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    /**
+     * @throws IOException if the blob is damaged or the checksum does not match
+     */
+    public static Message unpack(byte[] blob, int length) throws IOException {
+        if (length < 3 + TRAILER_SIZE) throw new IOException("Повреждённые данные");
+        ByteBuffer buffer = ByteBuffer.wrap(blob, 0, length);
+        Message m = new Message();
+        m.setMetaInfo(buffer.get());
+        int nameLength = buffer.getShort() & 0xFFFF;
+        if (nameLength > buffer.remaining() - TRAILER_SIZE) throw new IOException("Повреждённые данные");
+        m.setName(new String(blob, 3, nameLength, StandardCharsets.UTF_8));
+        byte[] body = new byte[length - 3 - nameLength - TRAILER_SIZE];
+        System.arraycopy(blob, 3 + nameLength, body, 0, body.length);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != buffer.getInt(length - TRAILER_SIZE)) {
+            throw new IOException("Контрольная сумма не совпадает");
+        }
+        m.setBody(body);
+        return m;
+    }
+
+    /**
+     * Message of a blob received into a file, the body stays there.
+     *
+     * @throws IOException if the header is damaged
+     */
+    public static ReceivedMessage open(ReassemblyFile file, int length) throws IOException {
+        if (length < 3 + TRAILER_SIZE) throw new IOException("Повреждённые данные");
+        byte[] head = new byte[3];
+        file.read(0, head, 0, head.length);
+        ByteBuffer buffer = ByteBuffer.wrap(head);
+        Message header = new Message();
+        header.setMetaInfo(buffer.get());
+        int nameLength = buffer.getShort() & 0xFFFF;
+        if (nameLength > length - 3 - TRAILER_SIZE) throw new IOException("Повреждённые данные");
+        byte[] name = new byte[nameLength];
+        file.read(3, name, 0, nameLength);
+        header.setName(new String(name, StandardCharsets.UTF_8));
+        byte[] trailer = new byte[TRAILER_SIZE];
+        file.read(length - TRAILER_SIZE, trailer, 0, TRAILER_SIZE);
+        return new ReceivedMessage(header, file, 3 + nameLength, length - 3 - nameLength - TRAILER_SIZE,
+                ByteBuffer.wrap(trailer).getInt());
+    }
+
+    /**
+     * Checks the layout announced by a frame header, before anything is allocated for the
+     * transfer.
+     *
+     * @return number of parts or symbols of the blob
+     * @throws IOException if the length or the symbol size is out of bounds
+     */
+    static int symbolCount(int length, int symbolSize) throws IOException {
+        if (length < MIN_LENGTH || length > MAX_LENGTH || symbolSize <= 0 || symbolSize > MAX_SYMBOL_SIZE) {
+            throw new IOException("Повреждённые данные");
+        }
+        int count = (length + symbolSize - 1) / symbolSize;
+        if (count > MAX_SYMBOLS) throw new IOException("Повреждённые данные");
+        return count;
+    }
+
+    /**
+     * Transfer id of a blob sent with the given symbol size.  It is derived from the checksum of
+     * the whole body, the one of the blob trailer, so the same file sent with the same settings
+     * always gets the same id, and an edited file of the same length gets another one instead of
+     * resuming into the parts of the old one.
+     */
+    public static int transferId(int checksum, int length, int symbolSize) {
+        CRC32 crc = new CRC32();
+        ByteBuffer key = ByteBuffer.allocate(12);
+        key.putInt(checksum);
+        key.putInt(length);
+        key.putInt(symbolSize);
+        crc.update(key.array());
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,180 @@
+package com.del.qrt.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * Receiver side of the classic mode of the second protocol version, see {@link PartEncoder}.
+ * The parts go straight to a {@link ReassemblyFile}, the decoder must be closed.
+ */
+public class PartDecoder implements ResumableTransfer {
+
+    private final int transferId;
+    private final int length;
+    private final int partSize;
+    private final int partCount;
+    private final ReassemblyFile file;
+
+    /**
+     * Checks whether the decoded frame belongs to the classic mode.
+     */
+    public static boolean isPartFrame(byte[] frame) {
+        return (frame.length == PartEncoder.META_SIZE && frame[0] == PartEncoder.META
+                || frame.length > PartEncoder.DATA_HEADER_SIZE && frame[0] == PartEncoder.DATA)
+                && frame[1] == MessageBlob.FRAME_VERSION;
+    }
+
+    public static boolean isMeta(byte[] frame) {
+        return frame[0] == PartEncoder.META;
+    }
+
+    /**
+     * Transfer id of a meta or data frame.
+     */
+    public static int transferId(byte[] frame) {
+        return ByteBuffer.wrap(frame).getInt(isMeta(frame) ? 3 : 2);
+    }
+
+    /**
+     * Creates a decoder for the transfer described by the meta frame.
+     *
+     * @param codec codec the meta frame was read with
+     * @param dir   directory of the reassembly file
+     * @throws IOException if the meta frame is damaged or names another codec
+     */
+    public static PartDecoder forMeta(byte[] meta, PayloadCodec codec, File dir) throws IOException {
+        if (!isPartFrame(meta) || !isMeta(meta)) throw new IOException("Повреждённые данные");
+        ByteBuffer header = ByteBuffer.wrap(meta);
+        if (header.get(2) != codec.getId()) throw new IOException("Кодировка кадров не совпадает");
+        int length = header.getInt(7);
+        int partSize = header.getShort(11) & 0xFFFF;
+        MessageBlob.symbolCount(length, partSize);
+        return new PartDecoder(header.getInt(3), length, partSize, dir);
+    }
+
+    /**
+     * Creates a decoder for the transfer the data frame belongs to, when the meta frame has not
+     * been seen yet.
+     *
+     * @param dir directory of the reassembly file
+     * @throws IOException if the frame is damaged: the layout is out of bounds or the part does not
+     *                     fit it
+     */
+    public static PartDecoder forData(byte[] data, File dir) throws IOException {
+        if (!isPartFrame(data) || isMeta(data)) throw new IOException("Повреждённые данные");
+        ByteBuffer header = ByteBuffer.wrap(data);
+        int length = header.getInt(6);
+        int partSize = header.getShort(10) & 0xFFFF;
+        int count = MessageBlob.symbolCount(length, partSize);
+        int index = header.getInt(12);
+        int expected = index == count - 1 ? length - index * partSize : partSize;
+        if (index < 0 || index >= count || data.length != PartEncoder.DATA_HEADER_SIZE + expected) {
+            throw new IOException("Повреждённые данные");
+        }
+        return new PartDecoder(header.getInt(2), length, partSize, dir);
+    }
+
+    /**
+     * @throws IOException if the layout is out of bounds or the reassembly file can not be created
+     */
+    public PartDecoder(int transferId, int length, int partSize, File dir) throws IOException {
+        this.transferId = transferId;
+        this.length = length;
+        this.partSize = partSize;
+        this.partCount = MessageBlob.symbolCount(length, partSize);
+        this.file = new ReassemblyFile(dir, String.format("p%08x", transferId), length, partSize);
+    }
+
+    public int getTransferId() {
+        return transferId;
+    }
+
+    @Override
+    public String getKey() {
+        return String.format("p%08x", transferId);
+    }
+
+    @Override
+    public int getPartSize() {
+        return partSize;
+    }
+
+    @Override
+    public int getPartCount() {
+        return partCount;
+    }
+
+    public int getReceivedCount() {
+        return file.getReceivedCount();
+    }
+
+    public boolean isComplete() {
+        return file.isComplete();
+    }
+
+    public boolean hasPart(int index) {
+        return file.has(index);
+    }
+
+    /**
+     * Feeds one data frame to the decoder.
+     *
+     * @return true if the part was not seen before
+     */
+    public boolean add(byte[] frame) {
+        ByteBuffer header = ByteBuffer.wrap(frame);
+        if (!isPartFrame(frame) || isMeta(frame) || header.getInt(2) != transferId
+                || header.getInt(6) != length || (header.getShort(10) & 0xFFFF) != partSize) {
+            return false;
+        }
+        int index = header.getInt(12);
+        if (index < 0 || index >= partCount || file.has(index)) return false;
+        if (frame.length != PartEncoder.DATA_HEADER_SIZE + file.partLength(index)) return false;
+        return file.put(index, frame, PartEncoder.DATA_HEADER_SIZE);
+    }
+
+    /**
+     * The complete message, read from the reassembly file which it takes over: the decoder must
+     * not be used afterwards.
+     *
+     * @throws IOException if the header is damaged, the body is checked when read
+     */
+    public ReceivedMessage open() throws IOException {
+        if (!isComplete()) throw new IOException("Передача не завершена");
+        return MessageBlob.open(file, length);
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public BitSet getReceived() {
+        return file.getReceived();
+    }
+
+    @Override
+    public boolean restore(long length, int partSize, BitSet received) {
+        if (length != this.length || partSize != this.partSize) return false;
+        file.restore(received);
+        return true;
+    }
+
+    @Override
+    public void flush() {
+        file.flush();
+    }
+
+    @Override
+    public void delete() {
+        file.delete();
+    }
+
+    @Override
+    public void close() {
+        file.close();
+    }
+}
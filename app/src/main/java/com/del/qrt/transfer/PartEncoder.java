@@ -0,0 +1,112 @@
+package com.del.qrt.transfer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Sender side of the classic mode of the second protocol version: a meta frame followed by the
+ * packed message (see {@link MessageBlob}) cut into parts, shown in a loop.  Fed like
+ * {@link FountainEncoder}.
+ * <p/>
+ * Every data frame carries the layout of the transfer too, so a receiver joining in the middle of
+ * the loop can take the parts from the first frame it sees instead of waiting for the meta frame.
+ * <p/>
+ * Frame layouts:
+ * <pre>
+ *   byte   'm'                     byte   'd'
+ *   byte   frame version           byte   frame version
+ *   byte   payload codec id        int    transfer id
+ *   int    transfer id             int    packed message length
+ *   int    packed message length   short  part size
+ *   short  part size               int    part index
+ *                                  byte[] part
+ * </pre>
+ * The frame version is {@link MessageBlob#FRAME_VERSION}.
+ */
+public class PartEncoder implements BodyWriter {
+
+    public static final byte META = 'm';
+    public static final byte DATA = 'd';
+    public static final int META_SIZE = 13;
+    public static final int DATA_HEADER_SIZE = 16;
+
+    private final BlobBuffer blob;
+    private final PayloadCodec codec;
+    private final QrFormat format;
+
+    /**
+     * Encoder for a body of the given length, the parts fill a code of the given format to the
+     * last byte.
+     */
+    public PartEncoder(String name, byte metaInfo, long bodyLength, PayloadCodec codec, QrFormat format)
+            throws IOException {
+        int partSize = format.frameBytes(codec) - DATA_HEADER_SIZE;
+        if (partSize <= 0) throw new IOException("Версия QR слишком мала: " + format);
+        this.blob = new BlobBuffer(name, metaInfo, bodyLength, partSize);
+        this.codec = codec;
+        this.format = format;
+    }
+
+    @Override
+    public void write(ByteBuffer body) throws IOException {
+        blob.write(body);
+    }
+
+    @Override
+    public void fail(IOException e) {
+        blob.fail(e);
+    }
+
+    public PayloadCodec getCodec() {
+        return codec;
+    }
+
+    public QrFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Meta frame and parts.
+     */
+    public int getFrameCount() {
+        return blob.getSymbolCount() + 1;
+    }
+
+    /**
+     * Number of frames that can be produced right now: none until the checksum of the whole body,
+     * which the transfer id is derived from, is known.
+     */
+    public long available() {
+        return blob.isFinished() ? Long.MAX_VALUE : 0;
+    }
+
+    /**
+     * Frame 0 is the meta frame, frame {@code i} carries part {@code i - 1}.  Waits for the body
+     * if it is not read yet.
+     */
+    public byte[] frame(int index) throws IOException {
+        blob.awaitFinished();
+        if (index == 0) {
+            ByteBuffer frame = ByteBuffer.allocate(META_SIZE);
+            frame.put(META);
+            frame.put(MessageBlob.FRAME_VERSION);
+            frame.put(codec.getId());
+            frame.putInt(blob.getTransferId());
+            frame.putInt(blob.getLength());
+            frame.putShort((short) blob.getSymbolSize());
+            return frame.array();
+        }
+        int part = index - 1;
+        int offset = part * blob.getSymbolSize();
+        int size = Math.min(blob.getSymbolSize(), blob.getLength() - offset);
+        ByteBuffer frame = ByteBuffer.allocate(DATA_HEADER_SIZE + size);
+        frame.put(DATA);
+        frame.put(MessageBlob.FRAME_VERSION);
+        frame.putInt(blob.getTransferId());
+        frame.putInt(blob.getLength());
+        frame.putShort((short) blob.getSymbolSize());
+        frame.putInt(part);
+        blob.read(offset, frame.array(), DATA_HEADER_SIZE, size);
+        return frame.array();
+    }
+}
@@ -0,0 +1,78 @@
+package com.del.qrt.transfer;
+
+import com.google.zxing.qrcode.decoder.Mode;
+
+/**
+ * Turns the binary frames of the transfer protocol into QR text and back.  The codec of a frame is
+ * recognised by its first character, so the receiver needs no setting:
+ * <ul>
+ *   <li>binary frames start with the lowercase frame type ('f', 'm', 'd');</li>
+ *   <li>Base45 text uses only digits, capitals and {@code " $%*+-./:"};</li>
+ *   <li>frames of the first version of the protocol start with a character below 0x10.</li>
+ * </ul>
+ */
+public interface PayloadCodec {
+
+    /**
+     * One byte per byte in QR byte mode, declared as ISO-8859-1 so the scanner hands the bytes
+     * back unchanged.
+     */
+    PayloadCodec BINARY = new Latin1Codec();
+
+    /**
+     * Two bytes in three characters of the QR alphanumeric mode, about 97% of the byte mode
+     * capacity and safe with any scanner.
+     */
+    PayloadCodec BASE45 = new Base45Codec();
+
+    /**
+     * Id recorded in the meta frame.
+     */
+    byte getId();
+
+    /**
+     * Character set the QR encoder must use for the text.
+     */
+    String getCharset();
+
+    /**
+     * QR mode the text of the codec is encoded in.
+     */
+    Mode getMode();
+
+    /**
+     * Number of frame bytes that fit into the given number of characters.
+     */
+    int bytesFor(int characters);
+
+    String encode(byte[] frame);
+
+    /**
+     * @throws IllegalArgumentException if the text is not valid for the codec
+     */
+    byte[] decode(String text);
+
+    /**
+     * Byte of the frame at the given index, read straight from the text without decoding the
+     * rest of it.  The index must be below {@code bytesFor(text.length())}; the result is
+     * undefined for text that is not valid for the codec.
+     */
+    int peek(String text, int index);
+
+    static PayloadCodec forId(int id) {
+        if (id == BINARY.getId()) return BINARY;
+        if (id == BASE45.getId()) return BASE45;
+        return null;
+    }
+
+    /**
+     * Codec of the scanned text, null for frames of the first version of the protocol.
+     */
+    static PayloadCodec detect(String text) {
+        if (text == null || text.isEmpty()) return null;
+        char c = text.charAt(0);
+        if (c >= 'a' && c <= 'z') return BINARY;
+        if (Base45Codec.isAlphabet(c)) return BASE45;
+        return null;
+    }
+}
@@ -0,0 +1,100 @@
+package com.del.qrt.transfer;
+
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+import com.google.zxing.qrcode.decoder.Mode;
+import com.google.zxing.qrcode.decoder.Version;
+
+/**
+ * Target QR version and error correction level of the frames, with the exact number of frame
+ * bytes such a code holds for a payload codec.  The encoders cut the message so that every frame
+ * but the last fills its code to the last byte.
+ */
+public final class QrFormat {
+
+    private static final int MODE_BITS = 4;
+    // The encoder declares the character set of byte mode data in an ECI segment
+    private static final int ECI_BITS = 12;
+    private static final int QUIET_ZONE = 4;
+
+    // Share of the shorter side of the camera picture the code is expected to cover
+    private static final float FILL = 0.6f;
+
+    private final int version;
+    private final ErrorCorrectionLevel level;
+
+    public QrFormat(int version, ErrorCorrectionLevel level) {
+        if (version < 1 || version > 40) throw new IllegalArgumentException("Неверная версия QR: " + version);
+        this.version = version;
+        this.level = level;
+    }
+
+    /**
+     * Largest version the receiver camera can still resolve: the code is expected to cover
+     * {@code FILL} of the shorter side of the preview with at least the given number of camera
+     * pixels per module.
+     */
+    public static QrFormat forCamera(int previewWidth, int previewHeight, float pixelsPerModule,
+                                     ErrorCorrectionLevel level) {
+        return forCamera(previewWidth, previewHeight, 1, 1, pixelsPerModule, level);
+    }
+
+    /**
+     * Same for a grid of codes shown at once, {@code along} of them on the longer side of the
+     * picture and {@code across} on the shorter one.
+     */
+    public static QrFormat forCamera(int previewWidth, int previewHeight, int along, int across,
+                                     float pixelsPerModule, ErrorCorrectionLevel level) {
+        float side = Math.min(Math.max(previewWidth, previewHeight) * FILL / along,
+                Math.min(previewWidth, previewHeight) * FILL / across);
+        int modules = (int) (side / pixelsPerModule) - 2 * QUIET_ZONE;
+        int version = Math.max(1, Math.min(40, (modules - 17) / 4));
+        return new QrFormat(version, level);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public ErrorCorrectionLevel getLevel() {
+        return level;
+    }
+
+    /**
+     * Modules on a side of a code, quiet zone included.
+     */
+    public int getModules() {
+        return 17 + 4 * version + 2 * QUIET_ZONE;
+    }
+
+    /**
+     * Number of characters of the given mode that fit into one code.
+     */
+    public int characters(Mode mode) {
+        Version v = Version.getVersionForNumber(version);
+        int dataBits = (v.getTotalCodewords() - v.getECBlocksForLevel(level).getTotalECCodewords()) * 8;
+        int bits = dataBits - MODE_BITS - mode.getCharacterCountBits(v);
+        if (mode == Mode.BYTE) bits -= ECI_BITS;
+        switch (mode) {
+            case NUMERIC:
+                return bits / 10 * 3 + (bits % 10 >= 7 ? 2 : bits % 10 >= 4 ? 1 : 0);
+            case ALPHANUMERIC:
+                return bits / 11 * 2 + (bits % 11 >= 6 ? 1 : 0);
+            case BYTE:
+                return bits / 8;
+            default:
+                throw new IllegalArgumentException("Режим не поддерживается: " + mode);
+        }
+    }
+
+    /**
+     * Number of frame bytes that fit into one code with the given codec.
+     */
+    public int frameBytes(PayloadCodec codec) {
+        return codec.bytesFor(characters(codec.getMode()));
+    }
+
+    @Override
+    public String toString() {
+        return version + "-" + level;
+    }
+}
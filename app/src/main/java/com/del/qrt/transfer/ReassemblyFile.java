@@ -0,0 +1,201 @@
+package com.del.qrt.transfer;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.Set;
+
+/**
+ * Received data kept in a preallocated file mapped into memory rather than on the heap: every
+ * part is written once, straight to its offset, and a bitset tracks which parts are in.  The page
+ * cache holds the data, so the heap used while receiving does not grow with the size of the file.
+ * <p/>
+ * The file of a transfer is named after its key and outlives the object, so an interrupted
+ * transfer can go on later: {@link #flush()} the data, keep {@link #getReceived()} and
+ * {@link #restore(BitSet)} it when the file is opened again.  Not thread safe.
+ */
+public class ReassemblyFile implements Closeable {
+
+    private static final String TAG = "QR-transfer-reassembly";
+
+    private static final String PREFIX = "reassembly-";
+    private static final String SUFFIX = ".part";
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer map;
+    private final long length;
+    private final int partSize;
+    private final int partCount;
+    private final BitSet received = new BitSet();
+    private int receivedCount;
+
+    /**
+     * Opens the file of the transfer with the given key, creating it if needed.  Nothing is
+     * received until {@link #restore(BitSet)}.
+     *
+     * @param dir      directory of the file, the cache of the application
+     * @param key      key of the transfer, see {@link #fileOf(File, String)}
+     * @param length   size of the data
+     * @param partSize size of every part but the last one
+     */
+    public ReassemblyFile(File dir, String key, long length, int partSize) throws IOException {
+        if (length > Integer.MAX_VALUE) throw new IOException("Слишком большой файл");
+        this.length = length;
+        this.partSize = partSize;
+        this.partCount = (int) Math.max(1, (length + partSize - 1) / partSize);
+        this.file = fileOf(dir, key);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+            this.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } catch (IOException e) {
+            raf.close();
+            file.delete();
+            throw e;
+        }
+        this.raf = raf;
+    }
+
+    public static File fileOf(File dir, String key) {
+        return new File(dir, PREFIX + key + SUFFIX);
+    }
+
+    /**
+     * Deletes the files of the transfers that are not kept.
+     */
+    public static void deleteStale(File dir, Set<String> keep) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(PREFIX) && name.endsWith(SUFFIX));
+        if (files == null) return;
+        for (File f : files) {
+            String name = f.getName();
+            if (!keep.contains(name.substring(PREFIX.length(), name.length() - SUFFIX.length()))) f.delete();
+        }
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getPartSize() {
+        return partSize;
+    }
+
+    public int getPartCount() {
+        return partCount;
+    }
+
+    public int getReceivedCount() {
+        return receivedCount;
+    }
+
+    public boolean isComplete() {
+        return receivedCount == partCount;
+    }
+
+    public boolean has(int index) {
+        return index >= 0 && index < partCount && received.get(index);
+    }
+
+    /**
+     * Size of the part at the given index, the last one may be shorter.
+     */
+    public int partLength(int index) {
+        return (int) Math.min(partSize, length - (long) index * partSize);
+    }
+
+    /**
+     * Copy of the bitset of the parts that are in.
+     */
+    public BitSet getReceived() {
+        return (BitSet) received.clone();
+    }
+
+    /**
+     * Marks the parts of an earlier session of the same file as received.
+     */
+    public void restore(BitSet parts) {
+        received.clear();
+        received.or(parts);
+        if (received.length() > partCount) received.clear(partCount, received.length());
+        receivedCount = received.cardinality();
+    }
+
+    /**
+     * Writes the received data through to the storage, call before keeping the bitset.
+     */
+    public void flush() {
+        map.force();
+    }
+
+    /**
+     * Index of the first part that is not in, {@link #getPartCount()} when complete.
+     */
+    public int firstMissing() {
+        return received.nextClearBit(0);
+    }
+
+    /**
+     * Writes a whole part to its offset.
+     *
+     * @return false if the part was in already or does not fit
+     */
+    public boolean put(int index, byte[] b, int off) {
+        return index >= 0 && index < partCount && put(index, b, off, partLength(index));
+    }
+
+    /**
+     * Writes a part of {@code len} bytes, at most {@link #partLength(int)}, to its offset.
+     *
+     * @return false if the part was in already or does not fit
+     */
+    public boolean put(int index, byte[] b, int off, int len) {
+        if (index < 0 || index >= partCount || received.get(index) || len > partLength(index)) return false;
+        ByteBuffer target = map.duplicate();
+        target.position(index * partSize);
+        target.put(b, off, len);
+        received.set(index);
+        receivedCount++;
+        return true;
+    }
+
+    /**
+     * Reads a part that is in, see {@link #partLength(int)}.
+     */
+    public void get(int index, byte[] b, int off) {
+        read((long) index * partSize, b, off, partLength(index));
+    }
+
+    public void read(long position, byte[] b, int off, int len) {
+        ByteBuffer source = map.duplicate();
+        source.position((int) position);
+        source.get(b, off, len);
+    }
+
+    /**
+     * Closes the file, it is kept for a later session.
+     */
+    @Override
+    public void close() {
+        try {
+            raf.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close " + file, e);
+        }
+    }
+
+    /**
+     * Closes and deletes the file.
+     */
+    public void delete() {
+        close();
+        file.delete();
+    }
+}
@@ -0,0 +1,178 @@
+package com.del.qrt.transfer;
+
+import com.del.qr.Message;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Message of a complete transfer, still in its {@link ReassemblyFile}.  The body is streamed from
+ * the file in blocks rather than copied to the heap, closing deletes the file.
+ */
+public class ReceivedMessage implements Closeable {
+
+    private final Message header;
+    private final ReassemblyFile file;
+    private final long offset;
+    private final long length;
+    private final boolean checked;
+    private final int crc;
+
+    /**
+     * Body without a checksum, the parts were checked one by one.
+     *
+     * @param header name and meta info, without a body
+     * @param file   null for an empty body
+     */
+    public ReceivedMessage(Message header, ReassemblyFile file, long offset, long length) {
+        this(header, file, offset, length, false, 0);
+    }
+
+    /**
+     * Body checked against the given CRC32 once it has been read through.
+     */
+    public ReceivedMessage(Message header, ReassemblyFile file, long offset, long length, int crc) {
+        this(header, file, offset, length, true, crc);
+    }
+
+    private ReceivedMessage(Message header, ReassemblyFile file, long offset, long length, boolean checked, int crc) {
+        this.header = header;
+        this.file = file;
+        this.offset = offset;
+        this.length = length;
+        this.checked = checked;
+        this.crc = crc;
+    }
+
+    public String getName() {
+        return header.getName();
+    }
+
+    public boolean isZip() {
+        return header.isZip();
+    }
+
+    public boolean isClipboard() {
+        return header.isClipboard();
+    }
+
+    /**
+     * Size of the body as received, before unzipping.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Stream of the body as received.
+     *
+     * @throws IOException from the stream at its end if the body does not match its checksum
+     */
+    public InputStream openBody() {
+        return new BodyStream();
+    }
+
+    /**
+     * Stream of the content of the file: the body, or the single entry of a zipped body.  The
+     * rest of the archive is read when the entry ends, so the end of the content is reported only
+     * once the whole body matches its checksum.
+     *
+     * @throws IOException from the stream at its end if the body does not match its checksum
+     */
+    public InputStream openContent() throws IOException {
+        InputStream body = openBody();
+        if (!isZip()) return body;
+        ZipInputStream zip = new ZipInputStream(body);
+        if (zip.getNextEntry() == null) {
+            zip.close();
+            throw new IOException("Пустой архив");
+        }
+        return new FilterInputStream(zip) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b < 0) drain(body);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n < 0) drain(body);
+                return n;
+            }
+        };
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] block = new byte[8 * 1024];
+        while (in.read(block) != -1) {
+            // the checksum is verified at the end
+        }
+    }
+
+    /**
+     * The whole message on the heap, for small ones like a text for the clipboard.
+     */
+    public Message toMessage() throws IOException {
+        if (length > Integer.MAX_VALUE) throw new IOException("Слишком большой файл");
+        byte[] body = new byte[(int) length];
+        try (InputStream in = openBody()) {
+            int total = 0;
+            while (total < body.length) {
+                int n = in.read(body, total, body.length - total);
+                if (n < 0) throw new IOException("Повреждённые данные");
+                total += n;
+            }
+            // reaches the end, so the checksum is verified
+            in.read();
+        }
+        Message m = new Message(header.getName(), body);
+        m.setMetaInfo(header.getMetaInfo());
+        return m;
+    }
+
+    /**
+     * Deletes the reassembly file.
+     */
+    @Override
+    public void close() {
+        if (file != null) file.delete();
+    }
+
+    private class BodyStream extends InputStream {
+        private final CRC32 actual = new CRC32();
+        private long position;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (position == length) {
+                if (checked && (int) actual.getValue() != crc) {
+                    throw new IOException("Контрольная сумма не совпадает");
+                }
+                return -1;
+            }
+            int n = (int) Math.min(len, length - position);
+            file.read(offset + position, b, off, n);
+            actual.update(b, off, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, length - position);
+        }
+    }
+}
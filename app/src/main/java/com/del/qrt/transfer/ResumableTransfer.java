@@ -0,0 +1,73 @@
+package com.del.qrt.transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * Transfer being received into a {@link ReassemblyFile} that can be saved and taken up again after
+ * an interruption, even by another process.
+ */
+public interface ResumableTransfer extends Closeable {
+
+    /**
+     * Identifies the transfer across sessions, also names its file.
+     */
+    String getKey();
+
+    /**
+     * Size of the data, -1 while it is not known.
+     */
+    long getLength();
+
+    /**
+     * Size of the parts, 0 while it is not known.
+     */
+    int getPartSize();
+
+    int getPartCount();
+
+    /**
+     * Copy of the bitset of the parts received, see {@link #flush()}.
+     */
+    BitSet getReceived();
+
+    /**
+     * Hashes of the parts received, saved with the bitset, for a transfer whose key does not tell
+     * its content; null if the key does.
+     */
+    default byte[] getFingerprint() {
+        return null;
+    }
+
+    /**
+     * Takes over the parts received in an earlier session.
+     *
+     * @return false if the saved layout does not match, nothing is taken over then
+     */
+    boolean restore(long length, int partSize, BitSet received) throws IOException;
+
+    /**
+     * Takes over the parts received in an earlier session along with their fingerprint, see
+     * {@link #getFingerprint()}.
+     */
+    default boolean restore(long length, int partSize, BitSet received, byte[] fingerprint) throws IOException {
+        return restore(length, partSize, received);
+    }
+
+    /**
+     * Writes the received data through to the storage, call before saving the bitset.
+     */
+    void flush();
+
+    /**
+     * Closes and deletes the received data.
+     */
+    void delete();
+
+    /**
+     * Closes the received data, it is kept for a later session.
+     */
+    @Override
+    void close();
+}
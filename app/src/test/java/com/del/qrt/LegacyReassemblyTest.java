@@ -0,0 +1,142 @@
+package com.del.qrt;
+
+import com.del.qr.Message;
+import com.del.qr.MessageEncoder;
+import com.del.qr.Part;
+import com.del.qrt.transfer.ReceivedMessage;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LegacyReassemblyTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reassemblesThePartsInAnyOrder() throws Exception {
+        byte[] body = body(3000, 1);
+        List<Part> parts = parts("legacy.bin", body);
+        int count = parts.size() - 1;
+        assertTrue(count > 2);
+
+        LegacyReassembly legacy = new LegacyReassembly(parts.get(0), folder.getRoot());
+        try {
+            // the last part comes first, before the part size is known
+            assertTrue(legacy.add(parts.get(count)));
+            assertTrue(legacy.has(count));
+            for (int index = 1; index < count; index++) {
+                assertFalse(legacy.isComplete());
+                assertTrue(legacy.add(parts.get(index)));
+                assertFalse(legacy.add(parts.get(index)));
+            }
+            assertTrue(legacy.isComplete());
+            assertEquals(count + 1, legacy.firstMissing());
+            assertArrayEquals(body, read(legacy));
+        } finally {
+            legacy.close();
+        }
+    }
+
+    @Test
+    public void resumesTheSavedPartsWithTheirHashes() throws Exception {
+        byte[] body = body(3000, 2);
+        List<Part> parts = parts("resumed.bin", body);
+        int count = parts.size() - 1;
+
+        LegacyReassembly first = new LegacyReassembly(parts.get(0), folder.getRoot());
+        for (int index = 1; index <= count; index += 2) {
+            first.add(parts.get(index));
+        }
+        first.flush();
+        long length = first.getLength();
+        int partSize = first.getPartSize();
+        BitSet received = first.getReceived();
+        byte[] fingerprint = first.getFingerprint();
+        first.close();
+
+        LegacyReassembly second = new LegacyReassembly(parts.get(0), folder.getRoot());
+        try {
+            // progress saved without the hashes is not taken over
+            assertFalse(second.restore(length, partSize, received));
+            assertTrue(second.restore(length, partSize, received, fingerprint));
+            assertEquals(first.getReceivedCount(), second.getReceivedCount());
+            assertEquals(parts.get(1).getHash(), second.getHash(1));
+            for (int index = 2; index <= count; index += 2) {
+                assertTrue(second.add(parts.get(index)));
+            }
+            assertTrue(second.isComplete());
+            assertArrayEquals(body, read(second));
+        } finally {
+            second.close();
+        }
+    }
+
+    @Test
+    public void failsOnAPartOfAnotherFileUnderTheSameKey() throws Exception {
+        byte[] body = body(3000, 3);
+        byte[] edited = body.clone();
+        edited[10] ^= 1;
+        List<Part> parts = parts("edited.bin", body);
+        List<Part> others = parts("edited.bin", edited);
+        assertEquals(parts.size(), others.size());
+
+        LegacyReassembly legacy = new LegacyReassembly(parts.get(0), folder.getRoot());
+        try {
+            assertEquals(new LegacyReassembly(others.get(0), folder.getRoot()).getKey(), legacy.getKey());
+            assertTrue(legacy.add(parts.get(1)));
+            try {
+                legacy.add(others.get(1));
+                fail("part of another file taken");
+            } catch (IOException expected) {
+                // the transfer fails, its parts are dropped
+            }
+        } finally {
+            legacy.delete();
+        }
+    }
+
+    private static List<Part> parts(String name, byte[] body) throws Exception {
+        List<Part> parts = new ArrayList<>();
+        for (String text : MessageEncoder.code(new Message(name, body))) {
+            parts.add(MessageEncoder.encodeStr(text));
+        }
+        return parts;
+    }
+
+    private static byte[] body(int length, int seed) {
+        byte[] body = new byte[length];
+        new Random(seed).nextBytes(body);
+        return body;
+    }
+
+    private static byte[] read(LegacyReassembly legacy) throws IOException {
+        ReceivedMessage message = legacy.open();
+        try (InputStream in = message.openBody()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] block = new byte[4096];
+            int n;
+            while ((n = in.read(block)) != -1) {
+                out.write(block, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            message.close();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.del.qrt.camera;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameGateTest {
+
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+
+    @Test
+    public void skipsTheSamePictureUntilTheRefresh() {
+        FrameGate gate = new FrameGate();
+        ByteBuffer frame = frame(1);
+        assertTrue(gate.pass(frame, WIDTH, HEIGHT, 0));
+        assertFalse(gate.pass(frame, WIDTH, HEIGHT, 40));
+        assertFalse(gate.pass(frame(1), WIDTH, HEIGHT, 80));
+        assertEquals(2, gate.skipped());
+        assertTrue(gate.pass(frame, WIDTH, HEIGHT, FrameGate.REFRESH_MILLIS));
+        assertFalse(gate.pass(frame, WIDTH, HEIGHT, FrameGate.REFRESH_MILLIS + 40));
+    }
+
+    @Test
+    public void ignoresSensorNoise() {
+        FrameGate gate = new FrameGate();
+        ByteBuffer frame = frame(2);
+        gate.pass(frame, WIDTH, HEIGHT, 0);
+        Random random = new Random(2);
+        byte[] noisy = frame.array().clone();
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            int luma = (noisy[i] & 0xFF) + random.nextInt(5) - 2;
+            noisy[i] = (byte) Math.max(0, Math.min(255, luma));
+        }
+        assertFalse(gate.pass(ByteBuffer.wrap(noisy), WIDTH, HEIGHT, 40));
+    }
+
+    @Test
+    public void passesAPictureChangedInASingleBlock() {
+        FrameGate gate = new FrameGate();
+        ByteBuffer frame = frame(3);
+        gate.pass(frame, WIDTH, HEIGHT, 0);
+        // the last block of the frame gets darker, as when a code is replaced by another
+        byte[] changed = frame.array().clone();
+        for (int y = HEIGHT - HEIGHT / FrameGate.ROWS; y < HEIGHT; y++) {
+            for (int x = WIDTH - WIDTH / FrameGate.COLUMNS; x < WIDTH; x++) {
+                changed[y * WIDTH + x] = (byte) ((changed[y * WIDTH + x] & 0xFF) / 2);
+            }
+        }
+        assertTrue(gate.pass(ByteBuffer.wrap(changed), WIDTH, HEIGHT, 40));
+        assertFalse(gate.pass(ByteBuffer.wrap(changed), WIDTH, HEIGHT, 80));
+    }
+
+    @Test
+    public void passesTheFirstFrameOfANewSize() {
+        FrameGate gate = new FrameGate();
+        gate.pass(frame(4), WIDTH, HEIGHT, 0);
+        assertTrue(gate.pass(ByteBuffer.wrap(new byte[320 * 240 * 3 / 2]), 320, 240, 40));
+        assertFalse(gate.pass(ByteBuffer.wrap(new byte[320 * 240 * 3 / 2]), 320, 240, 80));
+    }
+
+    /**
+     * NV21 frame of random luma, the chroma plane is not looked at.
+     */
+    private static ByteBuffer frame(int seed) {
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+        new Random(seed).nextBytes(nv21);
+        return ByteBuffer.wrap(nv21);
+    }
+}
@@ -0,0 +1,120 @@
+package com.del.qrt.camera;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PreviewRingTest {
+
+    private final List<byte[]> recycled = new ArrayList<>();
+    private final PreviewRing.Recycler camera = recycled::add;
+
+    @Test
+    public void handsOverEveryFrameInTurnAndRefusesThemWhenFull() {
+        PreviewRing ring = new PreviewRing(3, false);
+        ByteBuffer[] frames = frames(4);
+        for (int i = 0; i < 3; i++) {
+            assertTrue(ring.offer(frames[i], i + 1, 100 + i, camera));
+        }
+        assertFalse(ring.offer(frames[3], 4, 103, camera));
+        assertEquals(1, ring.dropped());
+        // the caller gives a refused frame back itself
+        assertTrue(recycled.isEmpty());
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(ring.poll(camera) == frames[i]);
+            assertEquals(i + 1, ring.polledId());
+            assertEquals(100 + i, ring.polledTime());
+        }
+        assertTrue(ring.poll(camera) == null);
+        assertEquals(4, ring.produced());
+        assertEquals(3, ring.processed());
+    }
+
+    @Test
+    public void givesTheOlderFramesBackWithTheLatestOnlyPolicy() {
+        PreviewRing ring = new PreviewRing(2, true);
+        ByteBuffer[] frames = frames(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(ring.offer(frames[i], i + 1, i, camera));
+        }
+        // the ring keeps two, the two oldest went back to the camera
+        assertEquals(2, recycled.size());
+        assertTrue(recycled.get(0) == frames[0].array());
+        assertTrue(recycled.get(1) == frames[1].array());
+
+        // the reader takes the newest, the one waiting before it goes back too
+        assertTrue(ring.poll(camera) == frames[3]);
+        assertEquals(4, ring.polledId());
+        assertEquals(3, recycled.size());
+        assertTrue(recycled.get(2) == frames[2].array());
+        assertTrue(ring.poll(camera) == null);
+        assertEquals(3, ring.dropped());
+    }
+
+    @Test
+    public void keepsWorkingAcrossManyTurnsOfTheRing() {
+        PreviewRing ring = new PreviewRing(3, false);
+        ByteBuffer[] frames = frames(3);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(ring.offer(frames[i % 3], i, i, camera));
+            if (i % 2 == 1) {
+                assertTrue(ring.poll(camera) != null);
+                assertTrue(ring.poll(camera) != null);
+                assertEquals(i, ring.polledId());
+            }
+        }
+        assertEquals(0, ring.dropped());
+    }
+
+    @Test
+    public void forgetsTheFramesOfAPreviousCamera() {
+        PreviewRing ring = new PreviewRing(2, false);
+        ring.offer(frames(1)[0], 1, 0, camera);
+        ring.clear();
+        assertTrue(ring.poll(camera) == null);
+        assertEquals(0, ring.produced());
+        assertEquals(0, ring.dropped());
+    }
+
+    @Test
+    public void everyBufferGoesEitherToDetectionOrBackOnce() throws InterruptedException {
+        PreviewRing ring = new PreviewRing(2, true);
+        int count = 200000;
+        ByteBuffer[] frames = frames(8);
+        AtomicInteger back = new AtomicInteger();
+        PreviewRing.Recycler counting = buffer -> back.incrementAndGet();
+        AtomicInteger processed = new AtomicInteger();
+        Thread reader = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (ring.poll(counting) != null) processed.incrementAndGet();
+            }
+        });
+        reader.start();
+        for (int i = 0; i < count; i++) {
+            ring.offer(frames[i % frames.length], i, i, counting);
+        }
+        reader.interrupt();
+        reader.join();
+        while (ring.poll(counting) != null) {
+            processed.incrementAndGet();
+        }
+        assertEquals(count, processed.get() + back.get());
+        assertEquals(back.get(), ring.dropped());
+    }
+
+    private static ByteBuffer[] frames(int count) {
+        ByteBuffer[] frames = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = ByteBuffer.wrap(new byte[16]);
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,72 @@
+package com.del.qrt.transfer;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class Base45CodecTest {
+
+    private final PayloadCodec codec = PayloadCodec.BASE45;
+
+    @Test
+    public void encodesTheVectorsOfTheRfc() {
+        assertEquals("BB8", codec.encode(bytes("AB")));
+        assertEquals("%69 VD92EX0", codec.encode(bytes("Hello!!")));
+        assertEquals("UJCLQE7W581", codec.encode(bytes("base-45")));
+        assertEquals("", codec.encode(new byte[0]));
+    }
+
+    @Test
+    public void decodesTheVectorsOfTheRfc() {
+        assertArrayEquals(bytes("ietf!"), codec.decode("QED8WEX0"));
+        assertArrayEquals(bytes("Hello!!"), codec.decode("%69 VD92EX0"));
+    }
+
+    @Test
+    public void decodesWhatItEncodes() {
+        Random random = new Random(45);
+        for (int length = 0; length < 64; length++) {
+            byte[] frame = new byte[length];
+            random.nextBytes(frame);
+            String text = codec.encode(frame);
+            assertEquals(length, codec.bytesFor(text.length()));
+            assertArrayEquals(frame, codec.decode(text));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsALengthLeftOverByOne() {
+        codec.decode("BB8B");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsCharactersOutOfTheAlphabet() {
+        codec.decode("bb8");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAGroupAboveTwoBytes() {
+        codec.decode(":::");
+    }
+
+    @Test
+    public void peeksEveryByteOfTheFrame() {
+        Random random = new Random(9285);
+        for (int length = 1; length < 40; length++) {
+            byte[] frame = new byte[length];
+            random.nextBytes(frame);
+            String text = codec.encode(frame);
+            for (int i = 0; i < length; i++) {
+                assertEquals("byte " + i + " of " + length, frame[i] & 0xFF, codec.peek(text, i));
+            }
+        }
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,59 @@
+package com.del.qrt.transfer;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CompressionTest {
+
+    @Test
+    public void storesAnEmptyFile() {
+        assertEquals(Compression.STORE, Compression.choose(new byte[0], 0));
+    }
+
+    @Test
+    public void storesDataThatDoesNotShrink() {
+        byte[] sample = new byte[Compression.SAMPLE_SIZE];
+        new Random(1).nextBytes(sample);
+        assertEquals(Compression.STORE, Compression.choose(sample, sample.length));
+    }
+
+    @Test
+    public void compressesText() {
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(2);
+        while (text.length() < 64 * 1024) {
+            text.append("Строка ").append(random.nextInt(1000)).append(" из файла журнала\n");
+        }
+        byte[] sample = text.toString().getBytes(StandardCharsets.UTF_8);
+        int level = Compression.choose(sample, sample.length);
+        assertTrue("level " + level, level >= 1 && level <= 9);
+    }
+
+    @Test
+    public void takesOnlyTheSampleLengthIntoAccount() {
+        // compressible head, random garbage past the sample length
+        byte[] sample = new byte[Compression.SAMPLE_SIZE];
+        new Random(3).nextBytes(sample);
+        Arrays.fill(sample, 0, 1000, (byte) 'a');
+        assertTrue(Compression.choose(sample, 1000) != Compression.STORE);
+    }
+
+    @Test
+    public void choosesTheSameLevelForTheSameSample() {
+        byte[] sample = new byte[100 * 1024];
+        Random random = new Random(4);
+        for (int i = 0; i < sample.length; i++) {
+            sample[i] = (byte) ('a' + random.nextInt(8));
+        }
+        int level = Compression.choose(sample, sample.length);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(level, Compression.choose(sample.clone(), sample.length));
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package com.del.qrt.transfer;
+
+import com.del.qr.Message;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FountainCodeTest {
+
+    private static final QrFormat FORMAT = new QrFormat(5, ErrorCorrectionLevel.L);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sourceSymbolsAreTheirOwnNeighbours() {
+        LtCode code = new LtCode(50);
+        int[] out = new int[50];
+        for (int esi = 0; esi < 50; esi++) {
+            assertEquals(1, code.neighbours(7, esi, out));
+            assertEquals(esi, out[0]);
+        }
+    }
+
+    @Test
+    public void repairSymbolsHaveDistinctNeighboursFromTheIdsOnly() {
+        LtCode code = new LtCode(50);
+        int[] out = new int[50];
+        int[] again = new int[50];
+        for (int esi = 50; esi < 500; esi++) {
+            int degree = code.neighbours(0x12345678, esi, out);
+            assertTrue(degree >= 1 && degree <= 50);
+            assertEquals(degree, new LtCode(50).neighbours(0x12345678, esi, again));
+            assertArrayEquals(Arrays.copyOf(out, degree), Arrays.copyOf(again, degree));
+            assertEquals(degree, Arrays.stream(out, 0, degree).distinct().count());
+        }
+    }
+
+    @Test
+    public void decodesWithoutTheLostSourceSymbols() throws IOException {
+        byte[] body = new byte[20000];
+        new Random(20000).nextBytes(body);
+        FountainEncoder encoder = new FountainEncoder(new Message("round trip.bin", body), PayloadCodec.BINARY, FORMAT);
+        int k = encoder.getSymbolCount();
+
+        FountainDecoder decoder = FountainDecoder.forFrame(encoder.symbol(0), folder.getRoot());
+        try {
+            assertEquals(encoder.getTransferId(), decoder.getTransferId());
+            assertEquals(k, decoder.getSymbolCount());
+            // every third source symbol is lost, the repair symbols make up for them
+            for (int esi = 0; esi < k; esi++) {
+                if (esi % 3 != 0) assertTrue(decoder.add(encoder.symbol(esi)));
+            }
+            assertFalse(decoder.isComplete());
+            assertFalse(decoder.add(encoder.symbol(1)));
+            for (int esi = k; !decoder.isComplete(); esi++) {
+                assertTrue("no decoding after " + esi + " symbols", esi < 3 * k);
+                decoder.add(encoder.symbol(esi));
+            }
+
+            ReceivedMessage message = decoder.open();
+            try {
+                assertEquals("round trip.bin", message.getName());
+                assertArrayEquals(body, read(message.openBody()));
+            } finally {
+                message.close();
+            }
+        } finally {
+            decoder.close();
+        }
+    }
+
+    @Test
+    public void decodesFromRepairSymbolsOnly() throws IOException {
+        byte[] body = new byte[10000];
+        new Random(10000).nextBytes(body);
+        FountainEncoder encoder = new FountainEncoder(new Message("repair.bin", body), PayloadCodec.BINARY, FORMAT);
+        int k = encoder.getSymbolCount();
+
+        FountainDecoder decoder = FountainDecoder.forFrame(encoder.symbol(k), folder.getRoot());
+        try {
+            for (int esi = k; !decoder.isComplete(); esi++) {
+                assertTrue("no decoding after " + (esi - k) + " repair symbols", esi < 4 * k);
+                assertTrue(decoder.add(encoder.symbol(esi)));
+            }
+            assertArrayEquals(body, body(decoder));
+        } finally {
+            decoder.close();
+        }
+    }
+
+    @Test
+    public void resumesWithTheSymbolsDecodedBefore() throws IOException {
+        byte[] body = new byte[10000];
+        new Random(10001).nextBytes(body);
+        FountainEncoder encoder = new FountainEncoder(new Message("resume.bin", body), PayloadCodec.BINARY, FORMAT);
+        int k = encoder.getSymbolCount();
+
+        FountainDecoder first = FountainDecoder.forFrame(encoder.symbol(0), folder.getRoot());
+        for (int esi = 0; esi < k / 2; esi++) {
+            first.add(encoder.symbol(esi));
+        }
+        first.flush();
+        BitSet received = first.getReceived();
+        first.close();
+        assertEquals(k / 2, received.cardinality());
+
+        FountainDecoder second = FountainDecoder.forFrame(encoder.symbol(0), folder.getRoot());
+        try {
+            assertFalse(second.restore(first.getLength() + 1, second.getPartSize(), received));
+            assertTrue(second.restore(first.getLength(), second.getPartSize(), received));
+            assertEquals(k / 2, second.getDecodedCount());
+            for (int esi = k / 2; esi < k; esi++) {
+                assertTrue(second.add(encoder.symbol(esi)));
+            }
+            assertTrue(second.isComplete());
+            assertArrayEquals(body, body(second));
+        } finally {
+            second.close();
+        }
+    }
+
+    @Test
+    public void anEditedBodyOfTheSameLengthGetsAnotherTransferId() throws IOException {
+        byte[] body = new byte[20000];
+        new Random(20000).nextBytes(body);
+        byte[] edited = body.clone();
+        edited[body.length - 1] ^= 1;   // past the first symbol
+        int id = new FountainEncoder(new Message("edited.bin", body), PayloadCodec.BINARY, FORMAT).getTransferId();
+        assertEquals(id, new FountainEncoder(new Message("edited.bin", body.clone()), PayloadCodec.BINARY, FORMAT).getTransferId());
+        assertNotEquals(id, new FountainEncoder(new Message("edited.bin", edited), PayloadCodec.BINARY, FORMAT).getTransferId());
+    }
+
+    @Test
+    public void rejectsDamagedHeadersBeforeOpeningTheTransfer() throws IOException {
+        byte[] body = new byte[2000];
+        new Random(2000).nextBytes(body);
+        FountainEncoder encoder = new FountainEncoder(new Message("header.bin", body), PayloadCodec.BINARY, FORMAT);
+        byte[] frame = encoder.symbol(0);
+
+        assertRejected(set(frame, 1, (byte) 0));                                      // frame version
+        assertRejected(setInt(frame, 6, 0));                                          // empty message
+        assertRejected(setInt(frame, 6, Integer.MAX_VALUE));                         // about 2 GB
+        assertRejected(setShort(frame, 10, 0));                                       // symbol size
+        assertRejected(setShort(frame, 10, frame.length - FountainEncoder.HEADER_SIZE + 1));
+        assertRejected(setInt(frame, 12, -1));                                        // symbol id
+        assertRejected(Arrays.copyOf(frame, frame.length - 1));                       // short symbol
+        assertEquals(0, folder.getRoot().list().length);
+
+        FountainDecoder decoder = FountainDecoder.forFrame(frame, folder.getRoot());
+        try {
+            assertFalse(decoder.add(Arrays.copyOf(encoder.symbol(1), frame.length + 1)));
+            assertFalse(decoder.add(setInt(encoder.symbol(1), 6, body.length)));
+            assertTrue(decoder.add(encoder.symbol(1)));
+        } finally {
+            decoder.close();
+        }
+    }
+
+    private void assertRejected(byte[] frame) {
+        try {
+            FountainDecoder.forFrame(frame, folder.getRoot()).close();
+            fail("damaged frame accepted");
+        } catch (IOException expected) {
+            // refused before any file was created
+        }
+    }
+
+    private static byte[] set(byte[] frame, int offset, byte value) {
+        byte[] copy = frame.clone();
+        copy[offset] = value;
+        return copy;
+    }
+
+    private static byte[] setShort(byte[] frame, int offset, int value) {
+        byte[] copy = frame.clone();
+        ByteBuffer.wrap(copy).putShort(offset, (short) value);
+        return copy;
+    }
+
+    private static byte[] setInt(byte[] frame, int offset, int value) {
+        byte[] copy = frame.clone();
+        ByteBuffer.wrap(copy).putInt(offset, value);
+        return copy;
+    }
+
+    private static byte[] body(FountainDecoder decoder) throws IOException {
+        ReceivedMessage message = decoder.open();
+        try {
+            return read(message.openBody());
+        } finally {
+            message.close();
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try (InputStream body = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] block = new byte[4096];
+            int n;
+            while ((n = body.read(block)) != -1) {
+                out.write(block, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+}
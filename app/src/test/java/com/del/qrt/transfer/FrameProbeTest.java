@@ -0,0 +1,68 @@
+package com.del.qrt.transfer;
+
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class FrameProbeTest {
+
+    private static final QrFormat FORMAT = new QrFormat(10, ErrorCorrectionLevel.L);
+
+    @Test
+    public void readsTheHeaderOfFountainFrames() throws IOException {
+        for (PayloadCodec codec : new PayloadCodec[]{PayloadCodec.BASE45, PayloadCodec.BINARY}) {
+            FountainEncoder encoder = new FountainEncoder("fountain.bin", (byte) 0, 5000, codec, FORMAT);
+            encoder.write(ByteBuffer.wrap(body(5000)));
+            for (int esi : new int[]{0, 1, encoder.getSymbolCount() - 1, encoder.getSymbolCount() + 7, 0x01020304}) {
+                String text = codec.encode(encoder.symbol(esi));
+                assertEquals(FrameProbe.FOUNTAIN, FrameProbe.type(codec, text));
+                assertEquals(encoder.getTransferId(), FrameProbe.transferId(codec, text, FrameProbe.FOUNTAIN));
+                assertEquals(esi, FrameProbe.symbolId(codec, text));
+            }
+        }
+    }
+
+    @Test
+    public void readsTheHeaderOfMetaAndDataFrames() throws IOException {
+        for (PayloadCodec codec : new PayloadCodec[]{PayloadCodec.BASE45, PayloadCodec.BINARY}) {
+            PartEncoder encoder = new PartEncoder("parts.bin", (byte) 0, 5000, codec, FORMAT);
+            encoder.write(ByteBuffer.wrap(body(5000)));
+            int transferId = ByteBuffer.wrap(encoder.frame(1)).getInt(2);
+
+            String meta = codec.encode(encoder.frame(0));
+            assertEquals(FrameProbe.META, FrameProbe.type(codec, meta));
+            assertEquals(transferId, FrameProbe.transferId(codec, meta, FrameProbe.META));
+
+            for (int index = 1; index < encoder.getFrameCount(); index++) {
+                String data = codec.encode(encoder.frame(index));
+                assertEquals(FrameProbe.DATA, FrameProbe.type(codec, data));
+                assertEquals(transferId, FrameProbe.transferId(codec, data, FrameProbe.DATA));
+                assertEquals(index - 1, FrameProbe.partIndex(codec, data));
+            }
+        }
+    }
+
+    @Test
+    public void leavesShortAndForeignTextsUnknown() {
+        PayloadCodec codec = PayloadCodec.BINARY;
+        assertEquals(FrameProbe.UNKNOWN, FrameProbe.type(codec, ""));
+        assertEquals(FrameProbe.UNKNOWN, FrameProbe.type(codec, "f0123456789abc"));
+        assertEquals(FrameProbe.UNKNOWN, FrameProbe.type(codec, "x0123456789abcdef"));
+        // any text starting with a frame type, without the frame version
+        assertEquals(FrameProbe.UNKNOWN, FrameProbe.type(codec, "file:///sdcard/Download/some/long/path.txt"));
+        assertEquals(FrameProbe.UNKNOWN, FrameProbe.type(codec, "data: 0123456789abcdef0123456789abcdef"));
+        assertEquals(FrameProbe.UNKNOWN, FrameProbe.type(codec, "mailto:someone@example"));
+    }
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        new Random(length).nextBytes(body);
+        return body;
+    }
+}
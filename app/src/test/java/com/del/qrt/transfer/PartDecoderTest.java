@@ -0,0 +1,188 @@
+package com.del.qrt.transfer;
+
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PartDecoderTest {
+
+    private static final QrFormat FORMAT = new QrFormat(5, ErrorCorrectionLevel.L);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void reassemblesTheMessageFromTheScannedTexts() throws IOException {
+        for (PayloadCodec codec : new PayloadCodec[]{PayloadCodec.BASE45, PayloadCodec.BINARY}) {
+            byte[] body = body(5000);
+            PartEncoder encoder = new PartEncoder("round trip.bin", (byte) 0, body.length, codec, FORMAT);
+            encoder.write(ByteBuffer.wrap(body));
+
+            byte[] meta = codec.decode(codec.encode(encoder.frame(0)));
+            assertTrue(PartDecoder.isPartFrame(meta));
+            PartDecoder decoder = PartDecoder.forMeta(meta, codec, folder.getRoot());
+            try {
+                // the parts come in any order, some of them twice
+                for (int index = encoder.getFrameCount() - 1; index > 0; index--) {
+                    byte[] data = codec.decode(codec.encode(encoder.frame(index)));
+                    assertEquals(decoder.getTransferId(), PartDecoder.transferId(data));
+                    assertTrue(decoder.add(data));
+                    assertFalse(decoder.add(data));
+                }
+                assertTrue(decoder.isComplete());
+                assertArrayEquals(body, read(decoder));
+            } finally {
+                decoder.close();
+            }
+        }
+    }
+
+    @Test
+    public void joinsFromADataFrameWithoutTheMeta() throws IOException {
+        byte[] body = body(3000);
+        PartEncoder encoder = new PartEncoder("late.bin", (byte) 0, body.length, PayloadCodec.BINARY, FORMAT);
+        encoder.write(ByteBuffer.wrap(body));
+
+        byte[] middle = encoder.frame(encoder.getFrameCount() / 2);
+        PartDecoder decoder = PartDecoder.forData(middle, folder.getRoot());
+        try {
+            assertEquals(encoder.getFrameCount() - 1, decoder.getPartCount());
+            assertTrue(decoder.add(middle));
+            assertEquals(1, decoder.getReceivedCount());
+            for (int index = 1; index < encoder.getFrameCount(); index++) {
+                decoder.add(encoder.frame(index));
+            }
+            assertTrue(decoder.isComplete());
+            assertArrayEquals(body, read(decoder));
+        } finally {
+            decoder.close();
+        }
+    }
+
+    @Test
+    public void rejectsDamagedMetaFramesBeforeOpeningTheTransfer() throws IOException {
+        byte[] meta = encoder(3000).frame(0);
+
+        assertRejectedMeta(set(meta, 1, (byte) 0));                   // frame version
+        assertRejectedMeta(set(meta, 2, PayloadCodec.BASE45.getId())); // another codec
+        assertRejectedMeta(setInt(meta, 7, 0));                       // empty message
+        assertRejectedMeta(setInt(meta, 7, Integer.MAX_VALUE));       // about 2 GB
+        assertRejectedMeta(setShort(meta, 11, 0));                    // part size
+        assertRejectedMeta(setShort(meta, 11, 4000));                 // larger than any code
+        assertRejectedMeta(Arrays.copyOf(meta, meta.length + 1));
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void rejectsDamagedDataFramesBeforeOpeningTheTransfer() throws IOException {
+        PartEncoder encoder = encoder(3000);
+        byte[] data = encoder.frame(1);
+        int partCount = encoder.getFrameCount() - 1;
+
+        assertRejectedData(set(data, 1, (byte) 0));                   // frame version
+        assertRejectedData(setInt(data, 6, -1));                      // negative length
+        assertRejectedData(setInt(data, 6, Integer.MAX_VALUE));       // about 2 GB
+        assertRejectedData(setShort(data, 10, 0));                    // part size
+        assertRejectedData(setInt(data, 12, -1));                     // part index
+        assertRejectedData(setInt(data, 12, partCount));
+        assertRejectedData(Arrays.copyOf(data, data.length - 1));     // short part
+        assertRejectedData(encoder.frame(0));                         // meta frame
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void dropsDataFramesOfAnotherLayout() throws IOException {
+        PartEncoder encoder = encoder(3000);
+        PartDecoder decoder = PartDecoder.forMeta(encoder.frame(0), PayloadCodec.BINARY, folder.getRoot());
+        try {
+            byte[] data = encoder.frame(1);
+            assertFalse(decoder.add(set(data, 1, (byte) 0)));
+            assertFalse(decoder.add(setInt(data, 6, 3001)));
+            assertFalse(decoder.add(setInt(data, 12, encoder.getFrameCount())));
+            assertFalse(decoder.add(Arrays.copyOf(data, data.length - 1)));
+            assertTrue(decoder.add(data));
+            assertFalse(decoder.add(data));
+        } finally {
+            decoder.close();
+        }
+    }
+
+    private void assertRejectedMeta(byte[] meta) {
+        try {
+            PartDecoder.forMeta(meta, PayloadCodec.BINARY, folder.getRoot()).close();
+            fail("damaged meta frame accepted");
+        } catch (IOException expected) {
+            // refused before any file was created
+        }
+    }
+
+    private void assertRejectedData(byte[] data) {
+        try {
+            PartDecoder.forData(data, folder.getRoot()).close();
+            fail("damaged data frame accepted");
+        } catch (IOException expected) {
+            // refused before any file was created
+        }
+    }
+
+    private static PartEncoder encoder(int length) throws IOException {
+        byte[] body = body(length);
+        PartEncoder encoder = new PartEncoder("parts.bin", (byte) 0, length, PayloadCodec.BINARY, FORMAT);
+        encoder.write(ByteBuffer.wrap(body));
+        return encoder;
+    }
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        new Random(length).nextBytes(body);
+        return body;
+    }
+
+    private static byte[] read(PartDecoder decoder) throws IOException {
+        ReceivedMessage message = decoder.open();
+        try (InputStream in = message.openBody()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] block = new byte[4096];
+            int n;
+            while ((n = in.read(block)) != -1) {
+                out.write(block, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            message.close();
+        }
+    }
+
+    private static byte[] set(byte[] frame, int offset, byte value) {
+        byte[] copy = frame.clone();
+        copy[offset] = value;
+        return copy;
+    }
+
+    private static byte[] setShort(byte[] frame, int offset, int value) {
+        byte[] copy = frame.clone();
+        ByteBuffer.wrap(copy).putShort(offset, (short) value);
+        return copy;
+    }
+
+    private static byte[] setInt(byte[] frame, int offset, int value) {
+        byte[] copy = frame.clone();
+        ByteBuffer.wrap(copy).putInt(offset, value);
+        return copy;
+    }
+}
@@ -0,0 +1,114 @@
+package com.del.qrt.transfer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReassemblyFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void putsThePartsAtTheirOffsets() throws IOException {
+        byte[] data = data(1000);
+        ReassemblyFile file = new ReassemblyFile(folder.getRoot(), "parts", data.length, 300);
+        try {
+            assertEquals(4, file.getPartCount());
+            assertEquals(300, file.partLength(0));
+            assertEquals(100, file.partLength(3));
+            for (int index : new int[]{3, 1, 0, 2}) {
+                assertFalse(file.isComplete());
+                assertTrue(file.put(index, data, index * 300));
+            }
+            assertTrue(file.isComplete());
+            assertEquals(4, file.firstMissing());
+
+            byte[] read = new byte[data.length];
+            file.read(0, read, 0, read.length);
+            assertArrayEquals(data, read);
+            byte[] last = new byte[100];
+            file.get(3, last, 0);
+            assertEquals(data[999], last[99]);
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void refusesRepeatedAndMisplacedParts() throws IOException {
+        byte[] data = data(1000);
+        ReassemblyFile file = new ReassemblyFile(folder.getRoot(), "refused", data.length, 300);
+        try {
+            assertTrue(file.put(1, data, 300));
+            assertFalse(file.put(1, data, 300));
+            assertFalse(file.put(-1, data, 0));
+            assertFalse(file.put(4, data, 0));
+            assertFalse(file.put(3, data, 0, 101));     // longer than the last part
+            assertFalse(file.has(4));
+            assertEquals(1, file.getReceivedCount());
+            assertEquals(0, file.firstMissing());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void keepsTheDataForALaterSession() throws IOException {
+        byte[] data = data(1000);
+        ReassemblyFile first = new ReassemblyFile(folder.getRoot(), "resumed", data.length, 300);
+        first.put(0, data, 0);
+        first.put(2, data, 600);
+        first.flush();
+        BitSet received = first.getReceived();
+        first.close();
+
+        ReassemblyFile second = new ReassemblyFile(folder.getRoot(), "resumed", data.length, 300);
+        try {
+            assertEquals(0, second.getReceivedCount());
+            BitSet stale = (BitSet) received.clone();
+            stale.set(10);                              // beyond the parts of this file
+            second.restore(stale);
+            assertEquals(2, second.getReceivedCount());
+            assertTrue(second.has(0) && second.has(2));
+            assertEquals(1, second.firstMissing());
+            second.put(1, data, 300);
+            second.put(3, data, 900);
+            byte[] read = new byte[data.length];
+            second.read(0, read, 0, read.length);
+            assertArrayEquals(data, read);
+        } finally {
+            second.delete();
+        }
+        assertFalse(ReassemblyFile.fileOf(folder.getRoot(), "resumed").exists());
+    }
+
+    @Test
+    public void deletesTheFilesOfTransfersNotKept() throws IOException {
+        new ReassemblyFile(folder.getRoot(), "kept", 10, 10).close();
+        new ReassemblyFile(folder.getRoot(), "stale", 10, 10).close();
+        File other = folder.newFile("other.txt");
+
+        ReassemblyFile.deleteStale(folder.getRoot(), Collections.singleton("kept"));
+        assertTrue(ReassemblyFile.fileOf(folder.getRoot(), "kept").exists());
+        assertFalse(ReassemblyFile.fileOf(folder.getRoot(), "stale").exists());
+        assertTrue(other.exists());
+    }
+
+    private static byte[] data(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
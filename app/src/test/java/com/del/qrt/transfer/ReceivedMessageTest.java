@@ -0,0 +1,167 @@
+package com.del.qrt.transfer;
+
+import com.del.qr.Message;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ReceivedMessageTest {
+
+    private static final int OFFSET = 17;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void streamsTheBodyThatMatchesItsChecksum() throws IOException {
+        byte[] body = data(20000);
+        ReceivedMessage message = received("body.bin", (byte) 0, body, crc(body));
+        try {
+            assertFalse(message.isZip());
+            assertEquals(body.length, message.getLength());
+            assertArrayEquals(body, read(message.openBody()));
+            assertArrayEquals(body, read(message.openContent()));
+            assertArrayEquals(body, message.toMessage().getBody());
+        } finally {
+            message.close();
+        }
+    }
+
+    @Test
+    public void failsAtTheEndOfABodyThatDoesNotMatch() throws IOException {
+        byte[] body = data(20000);
+        ReceivedMessage message = received("body.bin", (byte) 0, body, crc(body) + 1);
+        try {
+            assertRejected(message.openBody());
+            try {
+                message.toMessage();
+                fail("damaged body taken");
+            } catch (IOException expected) {
+                // checked when the end is reached
+            }
+        } finally {
+            message.close();
+        }
+    }
+
+    @Test
+    public void unzipsTheSingleEntryOfAZippedBody() throws IOException {
+        byte[] content = data(30000);
+        byte[] zip = zip("content.bin", content);
+        ReceivedMessage message = received("content.bin", Compression.ZIP_META, zip, crc(zip));
+        try {
+            assertTrue(message.isZip());
+            assertArrayEquals(content, read(message.openContent()));
+        } finally {
+            message.close();
+        }
+    }
+
+    @Test
+    public void checksTheWholeArchiveBeforeTheEndOfTheEntry() throws IOException {
+        byte[] zip = zip("content.bin", data(30000));
+        // the entry reads well, the central directory after it is what does not match
+        ReceivedMessage message = received("content.bin", Compression.ZIP_META, zip, crc(zip) ^ 1);
+        try {
+            assertRejected(message.openContent());
+        } finally {
+            message.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesAnEmptyArchive() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ZipOutputStream(out).close();
+        byte[] zip = out.toByteArray();
+        ReceivedMessage message = received("empty.zip", Compression.ZIP_META, zip, crc(zip));
+        try {
+            message.openContent();
+        } finally {
+            message.close();
+        }
+    }
+
+    @Test
+    public void deletesTheReassemblyFileWhenClosed() throws IOException {
+        byte[] body = data(100);
+        received("gone.bin", (byte) 0, body, crc(body)).close();
+        assertFalse(ReassemblyFile.fileOf(folder.getRoot(), "message").exists());
+    }
+
+    /**
+     * Message of the given body, stored in a reassembly file after a few bytes of header.
+     */
+    private ReceivedMessage received(String name, byte metaInfo, byte[] body, int crc) throws IOException {
+        ReassemblyFile file = new ReassemblyFile(folder.getRoot(), "message", OFFSET + body.length, OFFSET + body.length);
+        byte[] blob = new byte[OFFSET + body.length];
+        System.arraycopy(body, 0, blob, OFFSET, body.length);
+        assertTrue(file.put(0, blob, 0));
+        Message header = new Message();
+        header.setName(name);
+        header.setMetaInfo(metaInfo);
+        return new ReceivedMessage(header, file, OFFSET, body.length, crc);
+    }
+
+    private static void assertRejected(InputStream in) {
+        try {
+            read(in);
+            fail("damaged body read through");
+        } catch (IOException expected) {
+            // checked when the end is reached
+        }
+    }
+
+    private static byte[] zip(String name, byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(out)) {
+            zip.putNextEntry(new ZipEntry(name));
+            zip.write(content);
+            zip.closeEntry();
+        }
+        return out.toByteArray();
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] data(int length) {
+        // half random, half repeated, so that it compresses a bit
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        for (int i = length / 2; i < length; i++) {
+            data[i] = (byte) (i % 7);
+        }
+        return data;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try (InputStream body = in) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] block = new byte[4096];
+            int n;
+            while ((n = body.read(block)) != -1) {
+                out.write(block, 0, n);
+            }
+            return out.toByteArray();
+        }
+    }
+}